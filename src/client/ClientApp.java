@@ -1,13 +1,13 @@
 package client;
 
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 import common.ConfigLoader;
+import common.MessageChannel;
 
 public class ClientApp {
     static boolean firsttime = true ;
@@ -24,8 +24,7 @@ public class ClientApp {
         int masterPort = ConfigLoader.getInt("MASTER_PORT", 5000);
         try (
                 Socket socket = new Socket(masterIP, masterPort);
-                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-                ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+                MessageChannel channel = MessageChannel.connect(socket);
                 Scanner scanner = new Scanner(System.in)
         ) {
             // Menu loop
@@ -40,7 +39,8 @@ public class ClientApp {
                     System.out.println("2. Purchase Product");
                     System.out.println("3. Rate Store");
                     System.out.println("4. List all stores");
-                    System.out.println("5. Exit");
+                    System.out.println("5. Checkout Cart");
+                    System.out.println("6. Exit");
                     System.out.print("Choice: ");
                     choice = Integer.parseInt(scanner.nextLine());
                 }
@@ -52,52 +52,11 @@ public class ClientApp {
                         System.out.println("ENTER longitude");
                         String longitude  = scanner.nextLine();
 
-                        Map<String, Double> location = new HashMap<>();
+                        Map<String, Object> location = new HashMap<>();
                         location.put("latitude", Double.valueOf(latitude));
                         location.put("longitude", Double.valueOf(longitude));
                         System.out.println("Shops near you");
-                        out.writeObject("show_stores");
-                        out.flush();
-                        out.writeObject(location);
-                        out.flush();
-                        try {
-                            Object result = in.readObject();
-                            if (result instanceof List<?> list) {
-                                if (list.isEmpty()) {
-                                    System.out.println("No stores Near By.");
-                                } else {
-                                    System.out.println("All Near By Stores:");
-                                    for (Object o : list) {
-                                        if (o instanceof Map<?, ?> store) {
-                                            @SuppressWarnings("unchecked")
-                                            Map<String, Object> storeMap = (Map<String, Object>) store;
-                                            System.out.println("- " + storeMap.get("storeName") +
-                                                    " (" + storeMap.get("foodCategory") + ")" +
-                                                    " - Rating: " + storeMap.get("stars") + "/5" +
-                                                    " - Price Category: " + storeMap.get("priceCategory"));
-
-                                            @SuppressWarnings("unchecked")
-                                            List<Map<String, Object>> products = (List<Map<String, Object>>) storeMap.get("products");
-                                            if (products != null && !products.isEmpty()) {
-                                                System.out.println("  Products:");
-                                                for (Map<String, Object> product : products) {
-                                                    System.out.println("    - " + product.get("name") +
-                                                            " (" + product.get("type") + ")" +
-                                                            " - Price: $" + product.get("price") +
-                                                            " - Available: " + product.get("availableAmount"));
-                                                }
-                                            }
-                                        }
-                                    }
-                                    System.out.println("Total stores: " + list.size());
-                                }
-                            } else {
-                                System.out.println("Error: Received invalid response format from server");
-                            }
-                        } catch (Exception e) {
-                            System.err.println("Error while retrieving stores: " + e.getMessage());
-                        }
-
+                        showStorePages(channel, scanner, "show_stores", location, "No stores Near By.", "All Near By Stores:");
                     }
                     case 1 -> {
                         System.out.print("Enter food category: ");
@@ -106,17 +65,27 @@ public class ClientApp {
                         int stars = Integer.parseInt(scanner.nextLine());
                         System.out.print("Enter price category: ");
                         String priceCategory = scanner.nextLine();
+                        System.out.print("Sort by (distance, stars, votes, price or empty): ");
+                        String sortBy = scanner.nextLine().trim();
+                        System.out.print("Max results (empty for all): ");
+                        String limit = scanner.nextLine().trim();
 
                         Map<String, Object> searchData = new HashMap<>();
                         searchData.put("foodCategory", foodCategory);
                         searchData.put("stars", stars);
                         searchData.put("priceCategory", priceCategory);
+                        if (!sortBy.isEmpty()) {
+                            searchData.put("sortBy", sortBy);
+                        }
+                        if (!limit.isEmpty()) {
+                            searchData.put("limit", Integer.parseInt(limit));
+                        }
 
-                        out.writeObject("search");
-                        out.writeObject(searchData);
-                        out.flush();
+                        channel.writeObject("search");
+                        channel.writeObject(searchData);
+                        channel.flush();
 
-                        Object response = in.readObject();
+                        Object response = channel.readObject();
                         System.out.println("Response: " + response);
                     }
 
@@ -134,11 +103,11 @@ public class ClientApp {
                         purchaseData.put("productName", productName);
                         purchaseData.put("quantity", quantity);
 
-                        out.writeObject("purchase");
-                        out.writeObject(purchaseData);
-                        out.flush();
+                        channel.writeObject("purchase");
+                        channel.writeObject(purchaseData);
+                        channel.flush();
 
-                        Object response = in.readObject();
+                        Object response = channel.readObject();
                         System.out.println("Response: " + response);
                     }
 
@@ -153,62 +122,54 @@ public class ClientApp {
                         rateData.put("storeName", storeName);
                         rateData.put("stars", stars);
 
-                        out.writeObject("rate");
-                        out.writeObject(rateData);
-                        out.flush();
+                        channel.writeObject("rate");
+                        channel.writeObject(rateData);
+                        channel.flush();
 
-                        Object response = in.readObject();
+                        Object response = channel.readObject();
                         System.out.println("Response: " + response);
                     }
 
-                    case 4 -> {
-                        out.writeObject("get_all_stores");
-                        out.writeObject("none");
-                        out.flush();
-
-                        try {
-                            Object result = in.readObject();
-                            if (result instanceof List<?> list) {
-                                if (list.isEmpty()) {
-                                    System.out.println("No stores available in the system.");
-                                } else {
-                                    System.out.println("All Available Stores:");
-                                    for (Object o : list) {
-                                        if (o instanceof Map<?, ?> store) {
-                                            @SuppressWarnings("unchecked")
-                                            Map<String, Object> storeMap = (Map<String, Object>) store;
-                                            System.out.println("- " + storeMap.get("storeName") +
-                                                    " (" + storeMap.get("foodCategory") + ")" +
-                                                    " - Rating: " + storeMap.get("stars") + "/5" +
-                                                    " - Price Category: " + storeMap.get("priceCategory"));
-
-                                            @SuppressWarnings("unchecked")
-                                            List<Map<String, Object>> products = (List<Map<String, Object>>) storeMap.get("products");
-                                            if (products != null && !products.isEmpty()) {
-                                                System.out.println("  Products:");
-                                                for (Map<String, Object> product : products) {
-                                                    System.out.println("    - " + product.get("name") +
-                                                            " (" + product.get("type") + ")" +
-                                                            " - Price: $" + product.get("price") +
-                                                            " - Available: " + product.get("availableAmount"));
-                                                }
-                                            }
-                                        }
-                                    }
-                                    System.out.println("Total stores: " + list.size());
-                                }
-                            } else {
-                                System.out.println("Error: Received invalid response format from server");
+                    case 4 -> showStorePages(channel, scanner, "get_all_stores", new HashMap<>(),
+                            "No stores available in the system.", "All Available Stores:");
+
+                    case 5 -> {
+                        System.out.println("--- Checkout Cart ---");
+                        System.out.print("Enter store name: ");
+                        String storeName = scanner.nextLine();
+
+                        List<Map<String, Object>> items = new ArrayList<>();
+                        while (true) {
+                            System.out.print("Enter product name (empty to finish): ");
+                            String productName = scanner.nextLine();
+                            if (productName.isBlank()) {
+                                break;
                             }
-                        } catch (Exception e) {
-                            System.err.println("Error while retrieving stores: " + e.getMessage());
+                            System.out.print("Enter quantity: ");
+                            int quantity = Integer.parseInt(scanner.nextLine());
+
+                            Map<String, Object> item = new HashMap<>();
+                            item.put("productName", productName);
+                            item.put("quantity", quantity);
+                            items.add(item);
                         }
+
+                        Map<String, Object> checkoutData = new HashMap<>();
+                        checkoutData.put("storeName", storeName);
+                        checkoutData.put("items", items);
+
+                        channel.writeObject("checkout");
+                        channel.writeObject(checkoutData);
+                        channel.flush();
+
+                        Object response = channel.readObject();
+                        System.out.println("Response: " + response);
                     }
 
-                    case 5 -> {
-                        out.writeObject("exit");
-                        out.writeObject("no");
-                        out.flush();
+                    case 6 -> {
+                        channel.writeObject("exit");
+                        channel.writeObject("no");
+                        channel.flush();
                         System.out.println("Exiting CustomerApp.");
                         return;
                     }
@@ -216,8 +177,8 @@ public class ClientApp {
                     default -> System.out.println("Invalid option");
                 }
 
-                out.writeObject("yes");
-                out.flush();
+                channel.writeObject("yes");
+                channel.flush();
             }
 
         } catch (Exception e) {
@@ -225,4 +186,70 @@ public class ClientApp {
             e.printStackTrace();
         }
     }
+
+    // Requests the stores one page at a time, asking before fetching the next page
+    private static void showStorePages(MessageChannel channel, Scanner scanner, String command,
+                                       Map<String, Object> query, String emptyMessage, String title) throws Exception {
+        int shown = 0;
+        while (true) {
+            channel.writeObject(command);
+            channel.writeObject(query);
+            channel.flush();
+
+            Object result;
+            try {
+                result = channel.readObject();
+            } catch (Exception e) {
+                System.err.println("Error while retrieving stores: " + e.getMessage());
+                return;
+            }
+            if (!(result instanceof Map<?, ?> page) || !(page.get("stores") instanceof List<?> list)) {
+                System.out.println("Error: Received invalid response format from server");
+                return;
+            }
+
+            if (shown == 0) {
+                System.out.println(list.isEmpty() ? emptyMessage : title);
+            }
+            for (Object o : list) {
+                if (o instanceof Map<?, ?> store) {
+                    @SuppressWarnings("unchecked")
+                    Map<String, Object> storeMap = (Map<String, Object>) store;
+                    System.out.println("- " + storeMap.get("storeName") +
+                            " (" + storeMap.get("foodCategory") + ")" +
+                            " - Rating: " + storeMap.get("stars") + "/5" +
+                            " - Price Category: " + storeMap.get("priceCategory"));
+
+                    @SuppressWarnings("unchecked")
+                    List<Map<String, Object>> products = (List<Map<String, Object>>) storeMap.get("products");
+                    if (products != null && !products.isEmpty()) {
+                        System.out.println("  Products:");
+                        for (Map<String, Object> product : products) {
+                            System.out.println("    - " + product.get("name") +
+                                    " (" + product.get("type") + ")" +
+                                    " - Price: $" + product.get("price") +
+                                    " - Available: " + product.get("availableAmount"));
+                        }
+                    }
+                }
+            }
+            shown += list.size();
+
+            Object nextCursor = page.get("nextCursor");
+            if (nextCursor == null) {
+                if (shown > 0) {
+                    System.out.println("Total stores: " + shown);
+                }
+                return;
+            }
+            System.out.print("Show more stores? (y/n): ");
+            if (!scanner.nextLine().trim().equalsIgnoreCase("y")) {
+                return;
+            }
+            // Each request is followed by "yes" to keep the session open
+            channel.writeObject("yes");
+            channel.flush();
+            query.put("cursor", nextCursor);
+        }
+    }
 }
@@ -0,0 +1,128 @@
+package common;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Length-prefixed binary wire format.
+ *
+ * Every message is one frame: a 4-byte length, a 1-byte frame type and the body.
+ * Known commands travel as their own frame type with an empty body; any other
+ * message is a value frame whose body is encoded by {@link BinaryCodec}.
+ * The connecting side opens the stream with a 2-byte magic number.
+ */
+public class BinaryChannel extends MessageChannel {
+    static final int MAGIC = 0xFDB1;
+    private static final int MAX_FRAME_BYTES = ConfigLoader.getInt("WIRE_MAX_FRAME_BYTES", 64 * 1024 * 1024);
+    // Write buffers that grew past this are dropped after sending rather than kept around
+    private static final int RETAINED_BUFFER_BYTES = 1024 * 1024;
+
+    private static final byte FRAME_VALUE = 0x01;
+    private static final int FRAME_COMMAND_BASE = 0x40;
+
+    // Append-only: a command's position is its frame type
+    private static final String[] COMMANDS = {
+            "register", "update", "add_product", "purchase", "rate", "search", "get_all_stores",
+            "show_stores", "sales_by_product", "sales_by_food_category", "sales_by_product_type", "exit",
+            "nearby_stores", "checkout", "bulk_register", "register_batch",
+            "rebalance", "export_stores", "drop_stores", "thaw_stores",
+            "apply_changes", "sync_stores"
+    };
+    private static final Map<String, Integer> COMMAND_INDEX = new HashMap<>();
+
+    static {
+        for (int i = 0; i < COMMANDS.length; i++) {
+            COMMAND_INDEX.put(COMMANDS[i], i);
+        }
+    }
+
+    private final OutputStream out;
+    private final DataInputStream in;
+    private BinaryCodec.Writer writer = new BinaryCodec.Writer();
+    private byte[] readBuffer = new byte[256];
+
+    BinaryChannel(OutputStream out, InputStream in, boolean connecting) throws IOException {
+        this.out = out;
+        this.in = new DataInputStream(buffered(in));
+        if (connecting) {
+            writer.writeByte(MAGIC >>> 8);
+            writer.writeByte(MAGIC);
+            flush();
+        } else {
+            int magic = this.in.readUnsignedShort();
+            if (magic != MAGIC) {
+                throw new StreamCorruptedException("Unknown wire format " + Integer.toHexString(magic));
+            }
+        }
+    }
+
+    @Override
+    public void writeObject(Object message) throws IOException {
+        int frameStart = writer.size();
+        writer.writeInt(0);
+        Integer command = message instanceof String s ? COMMAND_INDEX.get(s) : null;
+        try {
+            if (command != null) {
+                writer.writeByte(FRAME_COMMAND_BASE + command);
+            } else {
+                writer.writeByte(FRAME_VALUE);
+                BinaryCodec.encode(message, writer);
+            }
+        } catch (IOException | RuntimeException e) {
+            writer.truncate(frameStart);
+            throw e;
+        }
+        writer.setInt(frameStart, writer.size() - frameStart - 4);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.write(writer.array(), 0, writer.size());
+        out.flush();
+        if (writer.array().length > RETAINED_BUFFER_BYTES) {
+            writer = new BinaryCodec.Writer();
+        } else {
+            writer.clear();
+        }
+    }
+
+    @Override
+    public Object readObject() throws IOException {
+        int length = in.readInt();
+        if (length < 1 || length > MAX_FRAME_BYTES) {
+            throw new StreamCorruptedException("Invalid frame length " + length);
+        }
+        if (readBuffer.length < length) {
+            readBuffer = new byte[Math.max(length, readBuffer.length * 2)];
+        }
+        in.readFully(readBuffer, 0, length);
+
+        int frameType = readBuffer[0] & 0xFF;
+        if (frameType == FRAME_VALUE) {
+            Object message = BinaryCodec.decode(new BinaryCodec.Reader(readBuffer, 1, length - 1));
+            if (readBuffer.length > RETAINED_BUFFER_BYTES) {
+                readBuffer = new byte[256];
+            }
+            return message;
+        }
+        int command = frameType - FRAME_COMMAND_BASE;
+        if (command < 0 || command >= COMMANDS.length) {
+            throw new StreamCorruptedException("Unknown frame type " + frameType);
+        }
+        return COMMANDS[command];
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            out.close();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,483 @@
+package common;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Compact tagged encoding for the values exchanged between the apps, Master, Workers and Reducer.
+ *
+ * Each value starts with a one-byte tag. Integers are zig-zag varints, strings are
+ * a varint length followed by UTF-8 bytes, and strings that appear in almost every
+ * message (map keys, command names) are sent as a single dictionary index.
+ * Stores, products and their summaries have their own fixed field layout, so no class descriptors
+ * or field names go on the wire, and decoding only ever creates the types listed here.
+ */
+public class BinaryCodec {
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_STRING = 1;
+    private static final byte TAG_DICT_STRING = 2;
+    private static final byte TAG_INT = 3;
+    private static final byte TAG_LONG = 4;
+    private static final byte TAG_DOUBLE = 5;
+    private static final byte TAG_TRUE = 6;
+    private static final byte TAG_FALSE = 7;
+    private static final byte TAG_UUID = 8;
+    private static final byte TAG_LIST = 9;
+    private static final byte TAG_MAP = 10;
+    private static final byte TAG_STORE = 11;
+    private static final byte TAG_PRODUCT = 12;
+    private static final byte TAG_STORE_SUMMARY = 13;
+    private static final byte TAG_PRODUCT_SUMMARY = 14;
+
+    private static final int MAX_COLLECTION_SIZE = 1 << 24;
+
+    // Append-only: the index of an entry is its wire code, so never reorder or remove entries
+    private static final String[] DICTIONARY = {
+            // Commands
+            "register", "update", "add_product", "purchase", "rate", "search", "get_all_stores",
+            "show_stores", "sales_by_product", "sales_by_food_category", "sales_by_product_type",
+            "exit", "yes", "no", "none", "ACK",
+            // Map keys
+            "storeName", "productName", "productType", "productImage", "availableAmount", "quantity",
+            "price", "remove", "stars", "foodCategory", "priceCategory", "requestId", "stores",
+            "categories", "latitude", "longitude", "name", "type", "image", "Latitude", "Longitude",
+            "logo", "products",
+            // Added with the spatial index
+            "nearby_stores", "radiusKm",
+            // Added with cart checkout
+            "checkout", "items",
+            // Added with the streaming reducer
+            "expectedWorkers",
+            // Added with top-K search
+            "limit", "sortBy",
+            // Added with paginated store listings
+            "cursor", "pageSize", "nextCursor",
+            // Added with store summaries
+            "productView", "active", "all",
+            // Added with the search cache
+            "complete",
+            // Added with per-request search deadlines
+            "timeoutMs",
+            // Added with in-Master search reduction
+            "reduceMode", "master", "reducer",
+            // Added with bulk store import
+            "parsed", "registered", "duplicates", "failed", "errors", "elapsedMs",
+            // Added with store rebalancing
+            "moved", "dropped",
+            // Added with store replication
+            "replicate", "changes", "response", "seq", "applied", "synced"
+    };
+    private static final Map<String, Integer> DICTIONARY_INDEX = new HashMap<>();
+
+    static {
+        for (int i = 0; i < DICTIONARY.length; i++) {
+            DICTIONARY_INDEX.put(DICTIONARY[i], i);
+        }
+    }
+
+    private BinaryCodec() {
+    }
+
+    public static void encode(Object value, Writer out) throws IOException {
+        if (value == null) {
+            out.writeByte(TAG_NULL);
+        } else if (value instanceof String s) {
+            Integer index = DICTIONARY_INDEX.get(s);
+            if (index != null) {
+                out.writeByte(TAG_DICT_STRING);
+                out.writeVarInt(index);
+            } else {
+                out.writeByte(TAG_STRING);
+                out.writeString(s);
+            }
+        } else if (value instanceof Integer i) {
+            out.writeByte(TAG_INT);
+            out.writeVarLong(zigZag(i));
+        } else if (value instanceof Long l) {
+            out.writeByte(TAG_LONG);
+            out.writeVarLong(zigZag(l));
+        } else if (value instanceof Double d) {
+            out.writeByte(TAG_DOUBLE);
+            out.writeDouble(d);
+        } else if (value instanceof Boolean b) {
+            out.writeByte(b ? TAG_TRUE : TAG_FALSE);
+        } else if (value instanceof UUID uuid) {
+            out.writeByte(TAG_UUID);
+            out.writeLong(uuid.getMostSignificantBits());
+            out.writeLong(uuid.getLeastSignificantBits());
+        } else if (value instanceof Store store) {
+            out.writeByte(TAG_STORE);
+            encodeStore(store, out);
+        } else if (value instanceof Product product) {
+            out.writeByte(TAG_PRODUCT);
+            encodeProduct(product, out);
+        } else if (value instanceof StoreSummary summary) {
+            out.writeByte(TAG_STORE_SUMMARY);
+            encodeStoreSummary(summary, out);
+        } else if (value instanceof ProductSummary summary) {
+            out.writeByte(TAG_PRODUCT_SUMMARY);
+            encodeProductSummary(summary, out);
+        } else if (value instanceof List<?> list) {
+            out.writeByte(TAG_LIST);
+            out.writeVarInt(list.size());
+            for (Object element : list) {
+                encode(element, out);
+            }
+        } else if (value instanceof Map<?, ?> map) {
+            out.writeByte(TAG_MAP);
+            out.writeVarInt(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                encode(entry.getKey(), out);
+                encode(entry.getValue(), out);
+            }
+        } else {
+            throw new IOException("Cannot encode values of type " + value.getClass().getName());
+        }
+    }
+
+    public static Object decode(Reader in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_STRING:
+                return in.readString();
+            case TAG_DICT_STRING: {
+                int index = in.readVarInt();
+                if (index < 0 || index >= DICTIONARY.length) {
+                    throw new StreamCorruptedException("Unknown dictionary entry " + index);
+                }
+                return DICTIONARY[index];
+            }
+            case TAG_INT:
+                return (int) unZigZag(in.readVarLong());
+            case TAG_LONG:
+                return unZigZag(in.readVarLong());
+            case TAG_DOUBLE:
+                return in.readDouble();
+            case TAG_TRUE:
+                return Boolean.TRUE;
+            case TAG_FALSE:
+                return Boolean.FALSE;
+            case TAG_UUID:
+                return new UUID(in.readLong(), in.readLong());
+            case TAG_STORE:
+                return decodeStore(in);
+            case TAG_PRODUCT:
+                return decodeProduct(in);
+            case TAG_STORE_SUMMARY:
+                return decodeStoreSummary(in);
+            case TAG_PRODUCT_SUMMARY:
+                return decodeProductSummary(in);
+            case TAG_LIST: {
+                int size = readSize(in);
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(decode(in));
+                }
+                return list;
+            }
+            case TAG_MAP: {
+                int size = readSize(in);
+                Map<Object, Object> map = new HashMap<>(size * 2);
+                for (int i = 0; i < size; i++) {
+                    Object key = decode(in);
+                    map.put(key, decode(in));
+                }
+                return map;
+            }
+            default:
+                throw new StreamCorruptedException("Unknown value tag " + tag);
+        }
+    }
+
+    private static void encodeStore(Store store, Writer out) throws IOException {
+        out.writeString(store.getStoreName());
+        out.writeDouble(store.getLatitude());
+        out.writeDouble(store.getLongitude());
+        encode(store.getFoodCategory(), out);
+        out.writeVarInt(store.getStars());
+        out.writeVarInt(store.getNoOfVotes());
+        encode(store.getStoreLogo(), out);
+        encode(store.getPriceCategory(), out);
+        out.writeDouble(store.getTotalSales());
+        encode(store.getRequestId(), out);
+        List<Product> products = store.getProducts();
+        out.writeVarInt(products.size());
+        for (Product product : products) {
+            encodeProduct(product, out);
+        }
+    }
+
+    private static Store decodeStore(Reader in) throws IOException {
+        String storeName = in.readString();
+        double latitude = in.readDouble();
+        double longitude = in.readDouble();
+        String foodCategory = decodeString(in);
+        int stars = in.readVarInt();
+        int noOfVotes = in.readVarInt();
+        String storeLogo = decodeString(in);
+        String priceCategory = decodeString(in);
+        double totalSales = in.readDouble();
+        Object requestId = decode(in);
+        if (requestId != null && !(requestId instanceof UUID)) {
+            throw new StreamCorruptedException("Expected a request id");
+        }
+        int productCount = readSize(in);
+        List<Product> products = new ArrayList<>(productCount);
+        for (int i = 0; i < productCount; i++) {
+            products.add(decodeProduct(in));
+        }
+        Store store = new Store(storeName, latitude, longitude, foodCategory, stars, noOfVotes,
+                storeLogo, products, priceCategory);
+        store.setTotalSales(totalSales);
+        store.setRequestId((UUID) requestId);
+        return store;
+    }
+
+    private static void encodeProduct(Product product, Writer out) throws IOException {
+        out.writeString(product.getProductName());
+        encode(product.getProductType(), out);
+        encode(product.getProductImage(), out);
+        out.writeVarInt(product.getAvailableAmount());
+        out.writeVarInt(product.getUnitsSold());
+        out.writeDouble(product.getPrice());
+        out.writeByte(product.isActive() ? 1 : 0);
+    }
+
+    private static Product decodeProduct(Reader in) throws IOException {
+        String productName = in.readString();
+        String productType = decodeString(in);
+        String productImage = decodeString(in);
+        int availableAmount = in.readVarInt();
+        int unitsSold = in.readVarInt();
+        double price = in.readDouble();
+        boolean active = in.readByte() != 0;
+        Product product = new Product(productName, productType, productImage, availableAmount, price);
+        product.setUnitsSold(unitsSold);
+        product.setActive(active);
+        return product;
+    }
+
+    private static void encodeStoreSummary(StoreSummary store, Writer out) throws IOException {
+        out.writeString(store.getStoreName());
+        out.writeDouble(store.getLatitude());
+        out.writeDouble(store.getLongitude());
+        encode(store.getFoodCategory(), out);
+        out.writeVarInt(store.getStars());
+        out.writeVarInt(store.getNoOfVotes());
+        encode(store.getStoreLogo(), out);
+        encode(store.getPriceCategory(), out);
+        List<ProductSummary> products = store.getProducts();
+        out.writeVarInt(products.size());
+        for (ProductSummary product : products) {
+            encodeProductSummary(product, out);
+        }
+    }
+
+    private static StoreSummary decodeStoreSummary(Reader in) throws IOException {
+        String storeName = in.readString();
+        double latitude = in.readDouble();
+        double longitude = in.readDouble();
+        String foodCategory = decodeString(in);
+        int stars = in.readVarInt();
+        int noOfVotes = in.readVarInt();
+        String storeLogo = decodeString(in);
+        String priceCategory = decodeString(in);
+        int productCount = readSize(in);
+        List<ProductSummary> products = new ArrayList<>(productCount);
+        for (int i = 0; i < productCount; i++) {
+            products.add(decodeProductSummary(in));
+        }
+        return new StoreSummary(storeName, latitude, longitude, foodCategory, stars, noOfVotes,
+                storeLogo, priceCategory, products);
+    }
+
+    private static void encodeProductSummary(ProductSummary product, Writer out) throws IOException {
+        out.writeString(product.getProductName());
+        encode(product.getProductType(), out);
+        encode(product.getProductImage(), out);
+        out.writeDouble(product.getPrice());
+        out.writeVarInt(product.getAvailableAmount());
+        out.writeByte(product.isActive() ? 1 : 0);
+    }
+
+    private static ProductSummary decodeProductSummary(Reader in) throws IOException {
+        String productName = in.readString();
+        String productType = decodeString(in);
+        String productImage = decodeString(in);
+        double price = in.readDouble();
+        int availableAmount = in.readVarInt();
+        boolean active = in.readByte() != 0;
+        return new ProductSummary(productName, productType, productImage, price, availableAmount, active);
+    }
+
+    private static String decodeString(Reader in) throws IOException {
+        Object value = decode(in);
+        if (value != null && !(value instanceof String)) {
+            throw new StreamCorruptedException("Expected a string but found " + value.getClass().getSimpleName());
+        }
+        return (String) value;
+    }
+
+    private static int readSize(Reader in) throws IOException {
+        int size = in.readVarInt();
+        if (size < 0 || size > MAX_COLLECTION_SIZE || size > in.remaining()) {
+            throw new StreamCorruptedException("Invalid collection size " + size);
+        }
+        return size;
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /** Growable byte buffer that frames are encoded into; reused across messages. */
+    public static class Writer {
+        private byte[] buffer = new byte[256];
+        private int size;
+
+        public int size() { return size; }
+        public byte[] array() { return buffer; }
+        public void clear() { size = 0; }
+        public void truncate(int newSize) { size = newSize; }
+
+        public void writeByte(int b) {
+            ensureCapacity(1);
+            buffer[size++] = (byte) b;
+        }
+
+        public void writeInt(int value) {
+            ensureCapacity(4);
+            buffer[size++] = (byte) (value >>> 24);
+            buffer[size++] = (byte) (value >>> 16);
+            buffer[size++] = (byte) (value >>> 8);
+            buffer[size++] = (byte) value;
+        }
+
+        // Overwrite four bytes at an earlier position, used to fill in frame lengths
+        public void setInt(int position, int value) {
+            buffer[position] = (byte) (value >>> 24);
+            buffer[position + 1] = (byte) (value >>> 16);
+            buffer[position + 2] = (byte) (value >>> 8);
+            buffer[position + 3] = (byte) value;
+        }
+
+        public void writeLong(long value) {
+            writeInt((int) (value >>> 32));
+            writeInt((int) value);
+        }
+
+        public void writeDouble(double value) {
+            writeLong(Double.doubleToLongBits(value));
+        }
+
+        public void writeVarInt(int value) {
+            writeVarLong(value & 0xFFFFFFFFL);
+        }
+
+        public void writeVarLong(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[size++] = (byte) value;
+        }
+
+        public void writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(bytes.length);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, size, bytes.length);
+            size += bytes.length;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (size + extra > buffer.length) {
+                byte[] grown = new byte[Math.max(buffer.length * 2, size + extra)];
+                System.arraycopy(buffer, 0, grown, 0, size);
+                buffer = grown;
+            }
+        }
+    }
+
+    /** Cursor over one received frame. */
+    public static class Reader {
+        private final byte[] buffer;
+        private int position;
+        private final int limit;
+
+        public Reader(byte[] buffer, int offset, int length) {
+            this.buffer = buffer;
+            this.position = offset;
+            this.limit = offset + length;
+        }
+
+        public int remaining() { return limit - position; }
+
+        public byte readByte() throws IOException {
+            require(1);
+            return buffer[position++];
+        }
+
+        public int readInt() throws IOException {
+            require(4);
+            int value = ((buffer[position] & 0xFF) << 24) | ((buffer[position + 1] & 0xFF) << 16)
+                    | ((buffer[position + 2] & 0xFF) << 8) | (buffer[position + 3] & 0xFF);
+            position += 4;
+            return value;
+        }
+
+        public long readLong() throws IOException {
+            return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+        }
+
+        public double readDouble() throws IOException {
+            return Double.longBitsToDouble(readLong());
+        }
+
+        public int readVarInt() throws IOException {
+            return (int) readVarLong();
+        }
+
+        public long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new StreamCorruptedException("Malformed varint");
+        }
+
+        public String readString() throws IOException {
+            int length = readVarInt();
+            if (length < 0) {
+                throw new StreamCorruptedException("Negative string length");
+            }
+            require(length);
+            String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        private void require(int bytes) throws IOException {
+            if (limit - position < bytes) {
+                throw new StreamCorruptedException("Frame ended unexpectedly");
+            }
+        }
+    }
+}
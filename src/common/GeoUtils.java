@@ -0,0 +1,72 @@
+package common;
+
+public class GeoUtils {
+    public static final double EARTH_RADIUS_KM = 6371.0;
+    // Length of one degree of latitude (and of longitude at the equator) on that sphere
+    public static final double KM_PER_DEGREE = Math.PI * EARTH_RADIUS_KM / 180.0;
+    // Added to the box deltas so rounding never puts a point inside the radius outside the box
+    private static final double MARGIN_DEGREES = 1e-9;
+
+    private GeoUtils() {
+    }
+
+    // Great-circle distance using the haversine formula
+    public static double distanceKm(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) +
+                Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) *
+                        Math.sin(dLon / 2) * Math.sin(dLon / 2);
+
+        double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+        return EARTH_RADIUS_KM * c;
+    }
+
+    public static boolean isWithinKm(double lat1, double lon1, double lat2, double lon2, double radiusKm) {
+        return distanceKm(lat1, lon1, lat2, lon2) <= radiusKm;
+    }
+
+    // Half-height of the box around a point that contains every point within the radius
+    public static double latitudeDelta(double radiusKm) {
+        return Math.toDegrees(radiusKm / EARTH_RADIUS_KM) + MARGIN_DEGREES;
+    }
+
+    // Half-width of that box: the widest longitude difference of any point within the radius,
+    // reached north or south of the center. It is 180 when the circle reaches a pole.
+    public static double longitudeDelta(double latitude, double radiusKm) {
+        double angle = radiusKm / EARTH_RADIUS_KM;
+        double sin = Math.sin(angle) / Math.cos(Math.toRadians(latitude));
+        if (Math.abs(latitude) + Math.toDegrees(angle) >= 90.0 || sin >= 1.0) {
+            return 180.0;
+        }
+        return Math.min(180.0, Math.toDegrees(Math.asin(sin)) + MARGIN_DEGREES);
+    }
+
+    // Longitude difference between two points, going the short way round (0 to 180)
+    public static double longitudeDistance(double lon1, double lon2) {
+        double difference = Math.abs(lon1 - lon2) % 360.0;
+        return difference > 180.0 ? 360.0 - difference : difference;
+    }
+
+    /** Latitude/longitude rectangle around a point; a cheap test to run before the exact distance. */
+    public static class BoundingBox {
+        private final double minLat;
+        private final double maxLat;
+        private final double longitude;
+        private final double lonDelta;
+
+        public BoundingBox(double latitude, double longitude, double radiusKm) {
+            double latDelta = latitudeDelta(radiusKm);
+            this.minLat = latitude - latDelta;
+            this.maxLat = latitude + latDelta;
+            this.longitude = longitude;
+            this.lonDelta = longitudeDelta(latitude, radiusKm);
+        }
+
+        // Longitudes are compared the short way round, so a box across the antimeridian works
+        public boolean contains(double latitude, double longitude) {
+            return latitude >= minLat && latitude <= maxLat && longitudeDistance(this.longitude, longitude) <= lonDelta;
+        }
+    }
+}
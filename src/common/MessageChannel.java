@@ -0,0 +1,69 @@
+package common;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+
+/**
+ * One end of a connection between two components of the system.
+ *
+ * Messages are read and written one object at a time, as with object streams.
+ * Two wire formats exist: the compact binary format ({@link BinaryChannel}) and
+ * Java serialization ({@link ObjectStreamChannel}), kept for gradual rollout.
+ *
+ * WIRE_PROTOCOL in .env selects what a connecting side speaks (binary or java).
+ * The accepting side detects the format from the first bytes of the connection and
+ * answers in kind. Java serialization is refused unless WIRE_ACCEPT_LEGACY=true,
+ * and even then only the classes messages are made of may be read.
+ */
+public abstract class MessageChannel implements Closeable {
+    private static final String WIRE_PROTOCOL = ConfigLoader.getString("WIRE_PROTOCOL", "binary");
+    private static final boolean ACCEPT_LEGACY = Boolean.parseBoolean(ConfigLoader.getString("WIRE_ACCEPT_LEGACY", "false"));
+
+    // First two bytes of every Java serialization stream
+    private static final int JAVA_STREAM_MAGIC = 0xACED;
+
+    public abstract void writeObject(Object message) throws IOException;
+
+    public abstract void flush() throws IOException;
+
+    public abstract Object readObject() throws IOException, ClassNotFoundException;
+
+    // Open the connecting side of a socket using the configured wire format
+    public static MessageChannel connect(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        if (WIRE_PROTOCOL.equalsIgnoreCase("java")) {
+            return new ObjectStreamChannel(socket.getOutputStream(), socket.getInputStream());
+        }
+        return new BinaryChannel(socket.getOutputStream(), socket.getInputStream(), true);
+    }
+
+    // Open the accepting side of a socket, speaking whichever format the peer opened with
+    public static MessageChannel accept(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+        in.mark(2);
+        int first = in.read();
+        int second = in.read();
+        in.reset();
+        if (first < 0 || second < 0) {
+            throw new java.io.EOFException("Connection closed before the first message");
+        }
+
+        int magic = (first << 8) | second;
+        if (magic == JAVA_STREAM_MAGIC) {
+            if (!ACCEPT_LEGACY) {
+                socket.close();
+                throw new IOException("Refusing Java-serialized connection from " + socket.getRemoteSocketAddress());
+            }
+            return new ObjectStreamChannel(socket.getOutputStream(), in);
+        }
+        return new BinaryChannel(socket.getOutputStream(), in, false);
+    }
+
+    static InputStream buffered(InputStream in) {
+        return in instanceof BufferedInputStream ? in : new BufferedInputStream(in);
+    }
+}
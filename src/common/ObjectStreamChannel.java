@@ -0,0 +1,57 @@
+package common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Legacy wire format: plain Java serialization of each message. Only the classes
+ * messages are made of may be read, so a peer cannot have arbitrary classes built.
+ */
+public class ObjectStreamChannel extends MessageChannel {
+    // Stores and products, their summaries, and the JDK types messages hold; anything else is refused
+    private static final ObjectInputFilter ALLOWED = ObjectInputFilter.Config.createFilter(
+            "maxdepth=64;common.Store;common.Product;common.StoreSummary;common.ProductSummary;"
+                    + "java.lang.*;java.util.*;java.util.concurrent.*;java.util.concurrent.atomic.*;"
+                    + "java.util.concurrent.locks.*;!*");
+
+    private final ObjectOutputStream out;
+    private final ObjectInputStream in;
+
+    public ObjectStreamChannel(OutputStream rawOut, InputStream rawIn) throws IOException {
+        // Both sides write their stream header first, so neither blocks waiting for the other
+        this.out = new ObjectOutputStream(rawOut);
+        this.out.flush();
+        this.in = new ObjectInputStream(buffered(rawIn));
+        this.in.setObjectInputFilter(ALLOWED);
+    }
+
+    @Override
+    public void writeObject(Object message) throws IOException {
+        out.writeObject(message);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+        // Forget already-sent objects so later changes to them are sent in full
+        out.reset();
+    }
+
+    @Override
+    public Object readObject() throws IOException, ClassNotFoundException {
+        return in.readObject();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            out.close();
+        } finally {
+            in.close();
+        }
+    }
+}
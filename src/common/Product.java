@@ -1,48 +1,72 @@
 package common;
 
 import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Product implements Serializable {
     private String productName;
     private String productType;
     private String productImage;
-    private int availableAmount;
-    private int unitsSold;
-    private double price;
-    private boolean isActive;
+    // Stock and sales are updated lock-free by concurrent purchases
+    private final AtomicInteger availableAmount;
+    private final AtomicInteger unitsSold;
+    private volatile double price;
+    private volatile boolean isActive;
 
     public Product(String productName, String productType,String productImage, int availableAmount, double price) {
         this.productName = productName;
         this.productType = productType;
         this.productImage = productImage;
-        this.availableAmount = availableAmount;
-        this.unitsSold = 0;
+        this.availableAmount = new AtomicInteger(availableAmount);
+        this.unitsSold = new AtomicInteger(0);
         this.price = price;
         this.isActive = true;
     }
 
-    public synchronized boolean purchase(int quantity) {
-        if (!isActive || quantity <= 0 || quantity > availableAmount) {
+    // Takes the quantity out of stock unless that would oversell; never blocks
+    public boolean purchase(int quantity) {
+        if (quantity <= 0) {
             return false;
         }
-        availableAmount -= quantity;
-        unitsSold += quantity;
-        return true;
+        while (true) {
+            int available = availableAmount.get();
+            if (!isActive || quantity > available) {
+                return false;
+            }
+            if (availableAmount.compareAndSet(available, available - quantity)) {
+                unitsSold.addAndGet(quantity);
+                return true;
+            }
+        }
+    }
+
+    // Puts back stock taken by purchase(), e.g. when the rest of an order fails
+    public void restock(int quantity) {
+        availableAmount.addAndGet(quantity);
+        unitsSold.addAndGet(-quantity);
+    }
+
+    // Applies a stock change already accepted elsewhere (a log replay or a replicated purchase), unchecked
+    public void adjustStock(int stockDelta, int unitsSoldDelta) {
+        availableAmount.addAndGet(stockDelta);
+        unitsSold.addAndGet(unitsSoldDelta);
     }
 
     // Getters και Setters
     public String getProductName() { return productName; }
     public String getProductType() { return productType; }
     public String getProductImage() { return productImage; }
-    public int getAvailableAmount() { return availableAmount; }
-    public int getUnitsSold() { return unitsSold; }
+    public int getAvailableAmount() { return availableAmount.get(); }
+    public int getUnitsSold() { return unitsSold.get(); }
     public double getPrice() { return price; }
     public boolean isActive() { return isActive; }
 
     public void setProductName(String name) { this.productName = name; }
     public void setProductType(String type) { this.productType = type; }
-    public void setAvailableAmount(int amount) { this.availableAmount = amount; }
+    public void setAvailableAmount(int amount) { this.availableAmount.set(amount); }
+    // Sets the stock and returns what it was, so the change can be logged as a delta
+    public int replaceAvailableAmount(int amount) { return this.availableAmount.getAndSet(amount); }
     public void setPrice(double price) { this.price = price; }
     public void setActive(boolean active) { this.isActive = active; }
-    public void setUnitsSold(int unitsSold) { this.unitsSold = unitsSold; }
+    public void setUnitsSold(int unitsSold) { this.unitsSold.set(unitsSold); }
 }
\ No newline at end of file
@@ -0,0 +1,35 @@
+package common;
+
+import java.io.Serializable;
+
+/** Read-only copy of the product fields a client displays. */
+public final class ProductSummary implements Serializable {
+    private final String productName;
+    private final String productType;
+    private final String productImage;
+    private final double price;
+    private final int availableAmount;
+    private final boolean active;
+
+    public ProductSummary(String productName, String productType, String productImage,
+                          double price, int availableAmount, boolean active) {
+        this.productName = productName;
+        this.productType = productType;
+        this.productImage = productImage;
+        this.price = price;
+        this.availableAmount = availableAmount;
+        this.active = active;
+    }
+
+    public static ProductSummary of(Product product) {
+        return new ProductSummary(product.getProductName(), product.getProductType(), product.getProductImage(),
+                product.getPrice(), product.getAvailableAmount(), product.isActive());
+    }
+
+    public String getProductName() { return productName; }
+    public String getProductType() { return productType; }
+    public String getProductImage() { return productImage; }
+    public double getPrice() { return price; }
+    public int getAvailableAmount() { return availableAmount; }
+    public boolean isActive() { return active; }
+}
@@ -0,0 +1,107 @@
+package common;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds the executors the Master, Worker and Reducer use to run accepted connections.
+ *
+ * Settings are read from .env, first with the given prefix and then without it,
+ * e.g. WORKER_SERVER_MAX_THREADS falls back to SERVER_MAX_THREADS:
+ *   SERVER_THREAD_MODE      bounded (default) or virtual (needs Java 21, falls back to bounded)
+ *   SERVER_MAX_THREADS      threads in the bounded pool
+ *   SERVER_QUEUE_CAPACITY   tasks waiting for a thread before the overload policy applies
+ *   SERVER_OVERLOAD_POLICY  reject (close the connection) or block (stall the accept loop)
+ *   SERVER_BACKLOG          accept backlog of the server socket
+ */
+public class ServerExecutor {
+
+    private ServerExecutor() {
+    }
+
+    public static ExecutorService create(String prefix) {
+        String mode = setting(prefix, "SERVER_THREAD_MODE", "bounded");
+        if (mode.equalsIgnoreCase("virtual")) {
+            ExecutorService virtual = newVirtualThreadExecutor();
+            if (virtual != null) {
+                System.out.println(prefix + " server using virtual threads");
+                return virtual;
+            }
+            System.err.println("Virtual threads are not available on this JVM, using a bounded pool for " + prefix);
+        }
+
+        int maxThreads = Integer.parseInt(setting(prefix, "SERVER_MAX_THREADS", "200"));
+        int queueCapacity = Integer.parseInt(setting(prefix, "SERVER_QUEUE_CAPACITY", "1000"));
+        String policy = setting(prefix, "SERVER_OVERLOAD_POLICY", "reject");
+
+        RejectedExecutionHandler overloadHandler = policy.equalsIgnoreCase("block")
+                ? ServerExecutor::waitForQueueSpace
+                : new ThreadPoolExecutor.AbortPolicy();
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), namedThreads(prefix), overloadHandler);
+        executor.allowCoreThreadTimeOut(true);
+        System.out.println(prefix + " server using a bounded pool of " + maxThreads + " threads (queue " + queueCapacity + ", " + policy + " on overload)");
+        return executor;
+    }
+
+    public static int backlog(String prefix) {
+        return Integer.parseInt(setting(prefix, "SERVER_BACKLOG", "50"));
+    }
+
+    // Run the handler for an accepted socket, closing the socket if the server is overloaded
+    public static void dispatch(ExecutorService executor, Socket socket, Runnable handler) {
+        try {
+            executor.execute(handler);
+        } catch (RejectedExecutionException e) {
+            System.err.println("Server overloaded, rejecting connection from " + socket.getRemoteSocketAddress());
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static String setting(String prefix, String key, String defaultValue) {
+        return ConfigLoader.getString(prefix + "_" + key, ConfigLoader.getString(key, defaultValue));
+    }
+
+    private static void waitForQueueSpace(Runnable task, ThreadPoolExecutor executor) {
+        if (executor.isShutdown()) {
+            throw new RejectedExecutionException("Executor is shut down");
+        }
+        try {
+            BlockingQueue<Runnable> queue = executor.getQueue();
+            queue.put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for a free thread", e);
+        }
+    }
+
+    private static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        String name = prefix.toLowerCase() + "-handler-";
+        return runnable -> new Thread(runnable, name + counter.incrementAndGet());
+    }
+
+    // Looked up reflectively so the code still compiles and runs on JDKs older than 21
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
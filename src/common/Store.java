@@ -1,10 +1,16 @@
 package common;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.DoubleAdder;
 
-public class Store implements Serializable {
+public class Store implements StoreInfo, Serializable {
     private String storeName;
     private double latitude;
     private double longitude;
@@ -13,8 +19,11 @@ public class Store implements Serializable {
     private int noOfVotes;
     private String storeLogo;
     private List<Product> products;
+    // Name -> product lookup kept alongside the ordered list; rebuilt after deserialization
+    private transient Map<String, Product> productsByName;
     private String priceCategory;
-    private double totalSales;
+    // Added to by concurrent purchases without locking
+    private final DoubleAdder totalSales = new DoubleAdder();
     private UUID requestId;
 
     public Store(String storeName, double latitude, double longitude, String foodCategory,
@@ -26,16 +35,22 @@ public class Store implements Serializable {
         this.stars = stars;
         this.noOfVotes = noOfVotes;
         this.storeLogo = storeLogo;
-        this.products = products;
+        // Read by many threads while products are occasionally added
+        this.products = new CopyOnWriteArrayList<>(products);
+        this.productsByName = indexByName(this.products);
         this.priceCategory = priceCategory;
-        this.totalSales = 0;
         this.requestId = null;
     }
 
     // Getters and Setters
-    public double getTotalSales(double amount) { return totalSales; }
-    public synchronized void addToTotalSales(double amount) {
-        this.totalSales += amount;
+    public double getTotalSales(double amount) { return totalSales.sum(); }
+    public double getTotalSales() { return totalSales.sum(); }
+    public void setTotalSales(double totalSales) {
+        this.totalSales.reset();
+        this.totalSales.add(totalSales);
+    }
+    public void addToTotalSales(double amount) {
+        this.totalSales.add(amount);
     }
 
     public String getStoreName() { return storeName; }
@@ -60,11 +75,33 @@ public class Store implements Serializable {
     public void setStoreLogo(String storeLogo) { this.storeLogo = storeLogo; }
 
     public List<Product> getProducts() { return products; }
-    public void setProducts(List<Product> products) { this.products = products; }
+    public void setProducts(List<Product> products) {
+        this.products = new CopyOnWriteArrayList<>(products);
+        this.productsByName = indexByName(this.products);
+    }
+
+    // Product with this name, active or not
+    public Product getProduct(String productName) { return productsByName.get(productName); }
+
+    public Product getActiveProduct(String productName) {
+        Product product = productsByName.get(productName);
+        return product != null && product.isActive() ? product : null;
+    }
 
     public String getPriceCategory() { return priceCategory; }
     public void setPriceCategory(String priceCategory) { this.priceCategory = priceCategory; }
 
+    @Override
+    public double getLowestPrice() {
+        double lowest = Double.POSITIVE_INFINITY;
+        for (Product product : products) {
+            if (product.isActive()) {
+                lowest = Math.min(lowest, product.getPrice());
+            }
+        }
+        return lowest;
+    }
+
     public UUID getRequestId() { return requestId; }
     public void setRequestId(UUID requestId) { this.requestId = requestId; }
 
@@ -78,9 +115,34 @@ public class Store implements Serializable {
     // Product management methods
     public void addProduct(Product product) {
         products.add(product);
+        productsByName.putIfAbsent(product.getProductName(), product);
         updatePriceCategory();
     }
 
+    // Deactivated products stay listed and indexed but can no longer be bought
+    public boolean deactivateProduct(String productName) {
+        Product product = productsByName.get(productName);
+        if (product == null) {
+            return false;
+        }
+        product.setActive(false);
+        return true;
+    }
+
+    private static Map<String, Product> indexByName(List<Product> products) {
+        Map<String, Product> byName = new ConcurrentHashMap<>();
+        for (Product product : products) {
+            // Keep the first product of a name, as a scan of the list would find
+            byName.putIfAbsent(product.getProductName(), product);
+        }
+        return byName;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        this.productsByName = indexByName(products);
+    }
+
     private void updatePriceCategory() {
         double totalPrice = 0;
         for (Product product : products) {
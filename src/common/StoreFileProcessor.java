@@ -4,16 +4,87 @@ import org.json.JSONObject;
 import org.json.JSONArray;
 
 import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 public class StoreFileProcessor {
     public static Store processStoreFile(String jsonFilePath) throws IOException {
         String content = new String(Files.readAllBytes(Paths.get(jsonFilePath)));
-        JSONObject json = new JSONObject(content);
+        return toStore(new JSONObject(content));
+    }
+
+    /**
+     * Reads every store in a file holding one store object, a JSON array of
+     * store objects, or one store object per line (NDJSON), and hands each
+     * store's JSON text to the action unparsed, so callers can parse stores on
+     * several threads (see {@link #parseStore}). The file is read as a stream.
+     */
+    public static void forEachStoreText(Path file, Consumer<String> action) throws IOException {
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            char[] buffer = new char[8192];
+            StringBuilder text = new StringBuilder();
+            // Nesting depth inside the current store object; 0 between stores
+            int depth = 0;
+            boolean first = true;
+            boolean inString = false;
+            boolean escaped = false;
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                for (int i = 0; i < read; i++) {
+                    char c = buffer[i];
+                    if (depth == 0) {
+                        if (Character.isWhitespace(c) || c == ',' || c == '\uFEFF') {
+                            continue;
+                        }
+                        if (first && c == '[') {
+                            first = false;
+                            continue;
+                        }
+                        if (c == ']') {
+                            return;
+                        }
+                        if (c != '{') {
+                            throw new IOException(file + ": Expected a store object, found '" + c + "'");
+                        }
+                        first = false;
+                    }
+                    text.append(c);
+                    if (inString) {
+                        if (escaped) {
+                            escaped = false;
+                        } else if (c == '\\') {
+                            escaped = true;
+                        } else if (c == '"') {
+                            inString = false;
+                        }
+                    } else if (c == '"') {
+                        inString = true;
+                    } else if (c == '{' || c == '[') {
+                        depth++;
+                    } else if ((c == '}' || c == ']') && --depth == 0) {
+                        action.accept(text.toString());
+                        text.setLength(0);
+                    }
+                }
+            }
+            if (depth != 0) {
+                throw new IOException(file + ": Ends inside a store object");
+            }
+        }
+    }
+
+    /** Builds a store from the JSON text of one store object; throws JSONException if it is not one. */
+    public static Store parseStore(String json) {
+        return toStore(new JSONObject(json));
+    }
 
+    private static Store toStore(JSONObject json) {
         // Extract store information
         String storeName = json.getString("StoreName");
         double latitude = json.getDouble("Latitude");
@@ -0,0 +1,17 @@
+package common;
+
+/**
+ * The store fields that searches filter and rank on, shared by full
+ * {@link Store} objects and the {@link StoreSummary} sent to clients.
+ */
+public interface StoreInfo {
+    String getStoreName();
+    double getLatitude();
+    double getLongitude();
+    String getFoodCategory();
+    int getStars();
+    int getNoOfVotes();
+    String getPriceCategory();
+    // Price of the cheapest active product; infinite if there is none
+    double getLowestPrice();
+}
@@ -0,0 +1,121 @@
+package common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Orders search results for top-K queries, over full stores or summaries alike.
+ *
+ * Workers keep their best {@code limit} stores with {@link #topK}, and the
+ * Reducer combines the already sorted worker lists with {@link #merge}, so
+ * neither ever sorts more than it sends on.
+ */
+public class StoreRanking {
+
+    private StoreRanking() {
+    }
+
+    /**
+     * Best-first order for sortBy: distance (nearest first), stars, votes (most first)
+     * or price (cheapest active product first). Ties are broken by store name so
+     * every worker ranks the same way. Returns null for no sort.
+     */
+    public static Comparator<StoreInfo> comparator(String sortBy, double latitude, double longitude) {
+        if (sortBy == null || sortBy.isBlank()) {
+            return null;
+        }
+        Comparator<StoreInfo> order = switch (sortBy.toLowerCase()) {
+            case "distance" -> Comparator.comparingDouble(
+                    (StoreInfo s) -> GeoUtils.distanceKm(latitude, longitude, s.getLatitude(), s.getLongitude()));
+            case "stars" -> Comparator.comparingInt(StoreInfo::getStars).reversed();
+            case "votes" -> Comparator.comparingInt(StoreInfo::getNoOfVotes).reversed();
+            case "price" -> Comparator.comparingDouble(StoreInfo::getLowestPrice);
+            default -> throw new IllegalArgumentException("Unknown sort order: " + sortBy);
+        };
+        return order.thenComparing(StoreInfo::getStoreName);
+    }
+
+    // The best limit stores in order, using a heap of at most limit entries; limit <= 0 keeps all
+    public static <T extends StoreInfo> List<T> topK(Iterable<T> stores, Comparator<? super T> order, int limit) {
+        List<T> result = new ArrayList<>();
+        if (limit <= 0) {
+            stores.forEach(result::add);
+            result.sort(order);
+            return result;
+        }
+
+        // Worst of the current best at the head, so it is the one replaced
+        PriorityQueue<T> best = new PriorityQueue<>(limit + 1, Collections.reverseOrder(order));
+        for (T store : stores) {
+            if (best.size() < limit) {
+                best.add(store);
+            } else if (order.compare(store, best.peek()) < 0) {
+                best.poll();
+                best.add(store);
+            }
+        }
+        result.addAll(best);
+        result.sort(order);
+        return result;
+    }
+
+    // K-way merge of lists already sorted by order, stopping after limit stores; limit <= 0 keeps all
+    public static <T extends StoreInfo> List<T> merge(List<? extends List<? extends T>> sortedLists,
+                                                      Comparator<? super T> order, int limit) {
+        return merge(sortedLists, order, limit, false);
+    }
+
+    // Same, but a store found in several lists (a replicated store) is taken once
+    public static <T extends StoreInfo> List<T> mergeDistinct(List<? extends List<? extends T>> sortedLists,
+                                                              Comparator<? super T> order, int limit) {
+        return merge(sortedLists, order, limit, true);
+    }
+
+    private static <T extends StoreInfo> List<T> merge(List<? extends List<? extends T>> sortedLists,
+                                                       Comparator<? super T> order, int limit, boolean distinct) {
+        PriorityQueue<Cursor<T>> heads = new PriorityQueue<>((a, b) -> order.compare(a.current(), b.current()));
+        int total = 0;
+        for (List<? extends T> list : sortedLists) {
+            total += list.size();
+            if (!list.isEmpty()) {
+                heads.add(new Cursor<>(list));
+            }
+        }
+
+        int wanted = limit > 0 ? Math.min(limit, total) : total;
+        List<T> result = new ArrayList<>(wanted);
+        Set<String> taken = distinct ? new HashSet<>() : null;
+        while (result.size() < wanted && !heads.isEmpty()) {
+            Cursor<T> head = heads.poll();
+            if (taken == null || taken.add(head.current().getStoreName())) {
+                result.add(head.current());
+            }
+            if (head.advance()) {
+                heads.add(head);
+            }
+        }
+        return result;
+    }
+
+    private static class Cursor<T> {
+        private final List<? extends T> list;
+        private int position;
+
+        Cursor(List<? extends T> list) {
+            this.list = list;
+        }
+
+        T current() {
+            return list.get(position);
+        }
+
+        boolean advance() {
+            return ++position < list.size();
+        }
+    }
+}
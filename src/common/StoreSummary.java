@@ -0,0 +1,88 @@
+package common;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Read-only snapshot of a store as shown to clients, sent instead of the full
+ * {@link Store} so sales totals, request ids and unwanted products stay on the worker.
+ *
+ * Requests pick which products come along with a "productView" of
+ * {@link #PRODUCTS_NONE}, {@link #PRODUCTS_ACTIVE} (the default) or {@link #PRODUCTS_ALL}.
+ */
+public final class StoreSummary implements StoreInfo, Serializable {
+    public static final String PRODUCTS_NONE = "none";
+    public static final String PRODUCTS_ACTIVE = "active";
+    public static final String PRODUCTS_ALL = "all";
+
+    private final String storeName;
+    private final double latitude;
+    private final double longitude;
+    private final String foodCategory;
+    private final int stars;
+    private final int noOfVotes;
+    private final String storeLogo;
+    private final String priceCategory;
+    private final List<ProductSummary> products;
+
+    public StoreSummary(String storeName, double latitude, double longitude, String foodCategory, int stars,
+                        int noOfVotes, String storeLogo, String priceCategory, List<ProductSummary> products) {
+        this.storeName = storeName;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.foodCategory = foodCategory;
+        this.stars = stars;
+        this.noOfVotes = noOfVotes;
+        this.storeLogo = storeLogo;
+        this.priceCategory = priceCategory;
+        this.products = List.copyOf(products);
+    }
+
+    public static StoreSummary of(Store store, String productView) {
+        String view = productView == null ? PRODUCTS_ACTIVE : productView;
+        List<ProductSummary> products = new ArrayList<>();
+        if (!view.equals(PRODUCTS_NONE)) {
+            for (Product product : store.getProducts()) {
+                if (view.equals(PRODUCTS_ALL) || product.isActive()) {
+                    products.add(ProductSummary.of(product));
+                }
+            }
+        }
+        return new StoreSummary(store.getStoreName(), store.getLatitude(), store.getLongitude(),
+                store.getFoodCategory(), store.getStars(), store.getNoOfVotes(), store.getStoreLogo(),
+                store.getPriceCategory(), products);
+    }
+
+    // Accepts the full stores older workers still send
+    public static StoreSummary from(StoreInfo store, String productView) {
+        return store instanceof Store full ? of(full, productView) : (StoreSummary) store;
+    }
+
+    public static boolean isProductView(String productView) {
+        return productView == null || productView.equals(PRODUCTS_NONE)
+                || productView.equals(PRODUCTS_ACTIVE) || productView.equals(PRODUCTS_ALL);
+    }
+
+    @Override public String getStoreName() { return storeName; }
+    @Override public double getLatitude() { return latitude; }
+    @Override public double getLongitude() { return longitude; }
+    @Override public String getFoodCategory() { return foodCategory; }
+    @Override public int getStars() { return stars; }
+    @Override public int getNoOfVotes() { return noOfVotes; }
+    @Override public String getPriceCategory() { return priceCategory; }
+    public String getStoreLogo() { return storeLogo; }
+    public List<ProductSummary> getProducts() { return products; }
+
+    // Only known from the products sent along, so not with PRODUCTS_NONE
+    @Override
+    public double getLowestPrice() {
+        double lowest = Double.POSITIVE_INFINITY;
+        for (ProductSummary product : products) {
+            if (product.isActive()) {
+                lowest = Math.min(lowest, product.getPrice());
+            }
+        }
+        return lowest;
+    }
+}
@@ -0,0 +1,12 @@
+package common;
+
+/**
+ * Replies a worker sends that the Master acts on, rather than passing them on to the client.
+ */
+public final class WorkerReplies {
+    // Sent for changes to a store that is being moved to another worker; the Master retries them
+    public static final String STORE_MOVING = "Error: Store is moving to another worker, please retry";
+
+    private WorkerReplies() {
+    }
+}
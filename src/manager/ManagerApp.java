@@ -4,6 +4,7 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import common.ConfigLoader;
+import common.MessageChannel;
 
 public class ManagerApp {
     public static void main(String[] args) {
@@ -17,8 +18,7 @@ public class ManagerApp {
         int masterPort = ConfigLoader.getInt("MASTER_PORT", 5000);
         try (
                 Socket socket = new Socket(masterIP, masterPort);
-                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-                ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+                MessageChannel channel = MessageChannel.connect(socket);
                 Scanner scanner = new Scanner(System.in)
         ) {
             System.out.println("\n--- Manager Menu ---");
@@ -30,7 +30,9 @@ public class ManagerApp {
                 System.out.println("4. View sales by product");
                 System.out.println("5. View sales by food category");
                 System.out.println("6. View sales by product type");
-                System.out.println("7. Exit");
+                System.out.println("7. Bulk register stores");
+                System.out.println("8. Rebalance stores across workers");
+                System.out.println("9. Exit");
                 System.out.print("Choice: ");
                 int choice = Integer.parseInt(scanner.nextLine());
 
@@ -39,11 +41,11 @@ public class ManagerApp {
                         System.out.print("Enter path to JSON store file: ");
                         String path = scanner.nextLine();
                         // Send path to Master
-                        out.writeObject("register");
-                        out.writeObject(path);
-                        out.flush();
+                        channel.writeObject("register");
+                        channel.writeObject(path);
+                        channel.flush();
                         // Wait for master to answer
-                        Object response = in.readObject();
+                        Object response = channel.readObject();
                         System.out.println(response);
                     }
 
@@ -89,11 +91,11 @@ public class ManagerApp {
                             updates.put("remove", true);
                         }
 
-                        out.writeObject("update");
-                        out.writeObject(updates);
-                        out.flush();
+                        channel.writeObject("update");
+                        channel.writeObject(updates);
+                        channel.flush();
 
-                        Object response = in.readObject();
+                        Object response = channel.readObject();
                         System.out.println(response);
                     }
 
@@ -120,11 +122,11 @@ public class ManagerApp {
                         product.put("availableAmount", availableAmount);
                         product.put("price", price);
 
-                        out.writeObject("add_product");
-                        out.writeObject(product);
-                        out.flush();
+                        channel.writeObject("add_product");
+                        channel.writeObject(product);
+                        channel.flush();
 
-                        Object response = in.readObject();
+                        Object response = channel.readObject();
                         System.out.println(response);
                     }
 
@@ -132,11 +134,11 @@ public class ManagerApp {
                         System.out.print("Enter store name: ");
                         String storeName = scanner.nextLine();
 
-                        out.writeObject("sales_by_product");
-                        out.writeObject(storeName);
-                        out.flush();
+                        channel.writeObject("sales_by_product");
+                        channel.writeObject(storeName);
+                        channel.flush();
 
-                        Object response = in.readObject();
+                        Object response = channel.readObject();
                         System.out.println(response);
                     }
 
@@ -144,11 +146,11 @@ public class ManagerApp {
                         System.out.print("Enter food category: ");
                         String foodCategory = scanner.nextLine();
 
-                        out.writeObject("sales_by_food_category");
-                        out.writeObject(foodCategory);
-                        out.flush();
+                        channel.writeObject("sales_by_food_category");
+                        channel.writeObject(foodCategory);
+                        channel.flush();
 
-                        Object response = in.readObject();
+                        Object response = channel.readObject();
                         System.out.println(response);
                     }
 
@@ -156,18 +158,75 @@ public class ManagerApp {
                         System.out.print("Enter product type: ");
                         String productType = scanner.nextLine();
 
-                        out.writeObject("sales_by_product_type");
-                        out.writeObject(productType);
-                        out.flush();
+                        channel.writeObject("sales_by_product_type");
+                        channel.writeObject(productType);
+                        channel.flush();
 
-                        Object response = in.readObject();
+                        Object response = channel.readObject();
                         System.out.println(response);
                     }
 
                     case 7 -> {
-                        out.writeObject("exit");
-                        out.writeObject("no");
-                        out.flush();
+                        System.out.print("Enter a directory of store files, or a JSON array / NDJSON file: ");
+                        String path = scanner.nextLine();
+                        channel.writeObject("bulk_register");
+                        channel.writeObject(path);
+                        channel.flush();
+
+                        // Progress reports arrive until the one marked complete
+                        while (true) {
+                            Object response = channel.readObject();
+                            if (!(response instanceof Map<?, ?> progress)) {
+                                System.out.println(response);
+                                break;
+                            }
+                            System.out.println((Boolean.TRUE.equals(progress.get("complete")) ? "Done: " : "Importing... ")
+                                    + progress.get("registered") + " registered, " + progress.get("duplicates")
+                                    + " already existed, " + progress.get("failed") + " failed, "
+                                    + progress.get("parsed") + " read in " + progress.get("elapsedMs") + " ms");
+                            if (Boolean.TRUE.equals(progress.get("complete"))) {
+                                if (progress.get("errors") instanceof List<?> errors) {
+                                    for (Object error : errors) {
+                                        System.out.println("  " + error);
+                                    }
+                                }
+                                break;
+                            }
+                        }
+                    }
+
+                    case 8 -> {
+                        System.out.println("Moving stores to match the workers in config.txt...");
+                        channel.writeObject("rebalance");
+                        channel.writeObject("none");
+                        channel.flush();
+
+                        // Progress reports arrive until the one marked complete
+                        while (true) {
+                            Object response = channel.readObject();
+                            if (!(response instanceof Map<?, ?> progress)) {
+                                System.out.println(response);
+                                break;
+                            }
+                            boolean complete = Boolean.TRUE.equals(progress.get("complete"));
+                            System.out.println((complete ? "Done: " : "Rebalancing... ") + progress.get("moved")
+                                    + " stores moved, " + progress.get("failed") + " failed, in "
+                                    + progress.get("elapsedMs") + " ms");
+                            if (complete) {
+                                if (progress.get("errors") instanceof List<?> errors) {
+                                    for (Object error : errors) {
+                                        System.out.println("  " + error);
+                                    }
+                                }
+                                break;
+                            }
+                        }
+                    }
+
+                    case 9 -> {
+                        channel.writeObject("exit");
+                        channel.writeObject("no");
+                        channel.flush();
                         System.out.println("Exiting ManagerApp.");
                         return;
                     }
@@ -175,8 +234,8 @@ public class ManagerApp {
                     default -> System.out.println("Invalid option");
                 }
 
-                out.writeObject("yes");
-                out.flush();
+                channel.writeObject("yes");
+                channel.flush();
             }
 
         } catch (Exception e) {
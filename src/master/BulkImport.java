@@ -0,0 +1,323 @@
+package master;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import common.ConfigLoader;
+import common.Store;
+import common.StoreFileProcessor;
+
+/**
+ * Registers every store found in a directory of store files, or in one file
+ * holding a JSON array or NDJSON of stores.
+ *
+ * Each file is split into chunks of BULK_REGISTER_BATCH_SIZE store objects as it
+ * is read, and the chunks are parsed on a pool of BULK_REGISTER_THREADS, so one
+ * large file is parsed in parallel too. Parsed stores are grouped by the workers
+ * that hold them and sent as "register_batch" requests of BULK_REGISTER_BATCH_SIZE
+ * stores, with at most BULK_REGISTER_MAX_IN_FLIGHT batches outstanding so parsing
+ * never runs far ahead of the workers. The caller is sent a progress report every
+ * BULK_REGISTER_PROGRESS_MS until the import is done.
+ *
+ * With replication, batches go to the stores' primaries, and a primary that
+ * cannot be reached is marked down and its batch sent on to the next copies, as
+ * with single registrations. Replicas get the stores once their primary has them;
+ * the counts are the primaries' answers, and a replica that misses a batch is
+ * marked down.
+ */
+class BulkImport {
+    private static final int BATCH_SIZE = ConfigLoader.getInt("BULK_REGISTER_BATCH_SIZE", 200);
+    private static final int THREADS = ConfigLoader.getInt("BULK_REGISTER_THREADS", Runtime.getRuntime().availableProcessors());
+    private static final int MAX_IN_FLIGHT = ConfigLoader.getInt("BULK_REGISTER_MAX_IN_FLIGHT", 8);
+    private static final int PROGRESS_MS = ConfigLoader.getInt("BULK_REGISTER_PROGRESS_MS", 1000);
+    // Only the first few problems are reported back
+    private static final int MAX_ERRORS = 20;
+
+    private final Function<String, List<WorkerConnectionPool>> router;
+    private final Replication replication;
+    private final long timeoutMs;
+    private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+    // Every batch sent and not answered yet, retries and replica batches included
+    private final Phaser outstanding = new Phaser(1);
+    // Stores waiting to be sent, per worker, to their primaries and to their replicas
+    private final Map<WorkerConnectionPool, List<Store>> batches = new ConcurrentHashMap<>();
+    private final Map<WorkerConnectionPool, List<Store>> replicaBatches = new ConcurrentHashMap<>();
+    private final AtomicInteger parsed = new AtomicInteger();
+    private final AtomicInteger registered = new AtomicInteger();
+    private final AtomicInteger duplicates = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final List<String> errors = new ArrayList<>();
+
+    BulkImport(Function<String, List<WorkerConnectionPool>> router, Replication replication, long timeoutMs) {
+        this.router = router;
+        this.replication = replication;
+        this.timeoutMs = timeoutMs;
+    }
+
+    /** Imports everything under the path and returns the final counts. */
+    Map<String, Object> run(String path, ProgressListener listener) throws IOException, InterruptedException {
+        long started = System.currentTimeMillis();
+        List<Path> files = storeFiles(Path.of(path));
+
+        int threads = Math.max(1, THREADS);
+        ExecutorService readers = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, files.size())));
+        ExecutorService parsers = Executors.newFixedThreadPool(threads);
+        // Chunks read but not parsed yet, so reading never runs far ahead of parsing
+        Semaphore chunks = new Semaphore(threads * 2);
+        try {
+            for (Path file : files) {
+                readers.execute(() -> read(file, parsers, chunks));
+            }
+            readers.shutdown();
+            while (!readers.awaitTermination(PROGRESS_MS, TimeUnit.MILLISECONDS)) {
+                listener.report(progress(false, started));
+            }
+            parsers.shutdown();
+            while (!parsers.awaitTermination(PROGRESS_MS, TimeUnit.MILLISECONDS)) {
+                listener.report(progress(false, started));
+            }
+        } finally {
+            readers.shutdownNow();
+            parsers.shutdownNow();
+        }
+
+        // Send what is left, then wait for every batch to be answered
+        sendRest(batches, true);
+        awaitSent(listener, started);
+        sendRest(replicaBatches, false);
+        awaitSent(listener, started);
+
+        Map<String, Object> result = progress(true, started);
+        synchronized (errors) {
+            result.put("errors", new ArrayList<>(errors));
+        }
+        System.out.println("Bulk import of " + path + ": " + result);
+        return result;
+    }
+
+    // Splits the file into chunks of store texts for the parsers
+    private void read(Path file, ExecutorService parsers, Semaphore chunks) {
+        List<String> chunk = new ArrayList<>(BATCH_SIZE);
+        try {
+            StoreFileProcessor.forEachStoreText(file, text -> {
+                chunk.add(text);
+                if (chunk.size() >= BATCH_SIZE) {
+                    parse(file, new ArrayList<>(chunk), parsers, chunks);
+                    chunk.clear();
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            error("Could not read " + file + ": " + e.getMessage());
+        }
+        // Stores read before any problem are still imported
+        if (!chunk.isEmpty()) {
+            parse(file, chunk, parsers, chunks);
+        }
+    }
+
+    private void parse(Path file, List<String> texts, ExecutorService parsers, Semaphore chunks) {
+        chunks.acquireUninterruptibly();
+        try {
+            parsers.execute(() -> {
+                try {
+                    for (String text : texts) {
+                        try {
+                            add(StoreFileProcessor.parseStore(text));
+                        } catch (RuntimeException e) {
+                            error("Could not read a store in " + file + ": " + e.getMessage());
+                        }
+                    }
+                } finally {
+                    chunks.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            chunks.release();
+            throw e;
+        }
+    }
+
+    // Waits until every batch sent so far is answered, reporting progress meanwhile
+    private void awaitSent(ProgressListener listener, long started) throws IOException, InterruptedException {
+        int phase = outstanding.arrive();
+        while (true) {
+            try {
+                outstanding.awaitAdvanceInterruptibly(phase, PROGRESS_MS, TimeUnit.MILLISECONDS);
+                return;
+            } catch (TimeoutException e) {
+                listener.report(progress(false, started));
+            }
+        }
+    }
+
+    // The file itself, or the .json/.ndjson/.jsonl files in the directory
+    private static List<Path> storeFiles(Path path) throws IOException {
+        if (!Files.isDirectory(path)) {
+            if (!Files.isReadable(path)) {
+                throw new IOException("Cannot read " + path);
+            }
+            return List.of(path);
+        }
+        try (Stream<Path> entries = Files.list(path)) {
+            return entries.filter(file -> {
+                String name = file.getFileName().toString().toLowerCase();
+                return Files.isRegularFile(file)
+                        && (name.endsWith(".json") || name.endsWith(".ndjson") || name.endsWith(".jsonl"));
+            }).sorted().toList();
+        }
+    }
+
+    // Called by the parser threads for every store read
+    private void add(Store store) {
+        parsed.incrementAndGet();
+        queue(batches, replication.primary(router.apply(store.getStoreName())), store, true);
+    }
+
+    // Queues the store for its other copies once its primary has it
+    private void replicate(WorkerConnectionPool primary, Store store) {
+        for (WorkerConnectionPool copy : router.apply(store.getStoreName())) {
+            if (copy != primary && replication.health(copy) != Replication.Health.DOWN) {
+                queue(replicaBatches, copy, store, false);
+            }
+        }
+    }
+
+    private void queue(Map<WorkerConnectionPool, List<Store>> pending, WorkerConnectionPool worker, Store store,
+                       boolean primary) {
+        List<Store> full = null;
+        List<Store> batch = pending.computeIfAbsent(worker, pool -> new ArrayList<>());
+        synchronized (batch) {
+            batch.add(store);
+            if (batch.size() >= BATCH_SIZE) {
+                full = new ArrayList<>(batch);
+                batch.clear();
+            }
+        }
+        if (full != null) {
+            try {
+                send(worker, full, primary);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (primary) {
+                    failed.addAndGet(full.size());
+                }
+            }
+        }
+    }
+
+    private void sendRest(Map<WorkerConnectionPool, List<Store>> pending, boolean primary) throws InterruptedException {
+        for (Map.Entry<WorkerConnectionPool, List<Store>> batch : pending.entrySet()) {
+            List<Store> rest;
+            synchronized (batch.getValue()) {
+                rest = new ArrayList<>(batch.getValue());
+                batch.getValue().clear();
+            }
+            if (!rest.isEmpty()) {
+                send(batch.getKey(), rest, primary);
+            }
+        }
+    }
+
+    // Primary batches wait for a free slot; replica batches follow answered ones and do not
+    private void send(WorkerConnectionPool worker, List<Store> batch, boolean primary) throws InterruptedException {
+        if (!primary) {
+            dispatch(worker, batch, false, 0, () -> { });
+            return;
+        }
+        inFlight.acquire();
+        dispatch(worker, batch, true, 0, inFlight::release);
+    }
+
+    private void dispatch(WorkerConnectionPool worker, List<Store> batch, boolean primary, int attempt, Runnable done) {
+        outstanding.register();
+        worker.sendAsync("register_batch", batch)
+                .orTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+                .whenComplete((response, error) -> {
+                    try {
+                        if (response instanceof Map<?, ?> counts) {
+                            if (primary) {
+                                registered.addAndGet((Integer) counts.get("registered"));
+                                duplicates.addAndGet((Integer) counts.get("duplicates"));
+                                for (Store store : batch) {
+                                    replicate(worker, store);
+                                }
+                            }
+                        } else if (!primary || error == null || !failOver(worker, batch, attempt, error)) {
+                            error("Worker " + worker.getAddress() + " rejected " + batch.size() + " stores: "
+                                    + (error != null ? error : response));
+                            if (primary) {
+                                failed.addAndGet(batch.size());
+                            } else {
+                                replication.markDown(worker, "missed a bulk import batch");
+                            }
+                        }
+                    } finally {
+                        // Follow-up batches are registered before this one arrives, so the wait covers them
+                        done.run();
+                        outstanding.arriveAndDeregister();
+                    }
+                });
+    }
+
+    // Marks an unreachable primary down and sends its batch on to each store's next copy;
+    // returns false if there is none to try
+    private boolean failOver(WorkerConnectionPool worker, List<Store> batch, int attempt, Throwable error) {
+        if (attempt + 1 >= replication.factor() || !replication.markDown(worker, String.valueOf(error))) {
+            return false;
+        }
+        Map<WorkerConnectionPool, List<Store>> regrouped = new HashMap<>();
+        int stranded = 0;
+        for (Store store : batch) {
+            WorkerConnectionPool next = replication.primary(router.apply(store.getStoreName()));
+            if (next == worker) {
+                stranded++;
+            } else {
+                regrouped.computeIfAbsent(next, pool -> new ArrayList<>()).add(store);
+            }
+        }
+        if (stranded > 0) {
+            error("No copy of " + stranded + " stores is reachable after " + worker.getAddress() + " failed: " + error);
+            failed.addAndGet(stranded);
+        }
+        for (Map.Entry<WorkerConnectionPool, List<Store>> next : regrouped.entrySet()) {
+            dispatch(next.getKey(), next.getValue(), true, attempt + 1, () -> { });
+        }
+        return true;
+    }
+
+    private void error(String message) {
+        System.err.println("Bulk import: " + message);
+        synchronized (errors) {
+            if (errors.size() < MAX_ERRORS) {
+                errors.add(message);
+            }
+        }
+    }
+
+    private Map<String, Object> progress(boolean complete, long started) {
+        Map<String, Object> progress = new HashMap<>();
+        progress.put("complete", complete);
+        progress.put("parsed", parsed.get());
+        progress.put("registered", registered.get());
+        progress.put("duplicates", duplicates.get());
+        progress.put("failed", failed.get());
+        progress.put("elapsedMs", System.currentTimeMillis() - started);
+        return progress;
+    }
+}
@@ -0,0 +1,102 @@
+package master;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Consistent-hash ring that assigns store names to workers.
+ *
+ * Each worker is placed on the ring at HASH_RING_VNODES points per unit of
+ * weight, and a store belongs to the first worker point at or after the hash
+ * of its name; its replicas go to the next distinct workers clockwise. Adding
+ * or removing a worker only moves the stores between its points and their
+ * neighbours, about 1/n of them, instead of nearly all stores as with
+ * hashCode() % n. Workers are placed by address, so a worker lands on
+ * the same points in every ring it is part of. Immutable.
+ */
+class HashRing<T> {
+    private final long[] points;
+    // The member at each point
+    private final List<T> owners;
+    private final Set<T> onRing = new HashSet<>();
+
+    /**
+     * @param members   the workers (or their connections)
+     * @param addresses "ip:port" of each member, which decides where it sits on the ring
+     * @param weights   relative share of stores for each member; 0 leaves it off the ring
+     */
+    HashRing(List<T> members, List<String> addresses, List<Integer> weights, int virtualNodes) {
+        List<long[]> placed = new ArrayList<>();
+        for (int member = 0; member < members.size(); member++) {
+            if (weights.get(member) <= 0) {
+                continue;
+            }
+            onRing.add(members.get(member));
+            int count = Math.max(1, virtualNodes * weights.get(member));
+            for (int replica = 0; replica < count; replica++) {
+                placed.add(new long[] {hash(addresses.get(member) + "#" + replica), member});
+            }
+        }
+        placed.sort((a, b) -> Long.compare(a[0], b[0]));
+        this.points = new long[placed.size()];
+        this.owners = new ArrayList<>(placed.size());
+        for (int i = 0; i < placed.size(); i++) {
+            points[i] = placed.get(i)[0];
+            owners.add(members.get((int) placed.get(i)[1]));
+        }
+    }
+
+    /** Up to count distinct members, starting with the owner and walking the ring clockwise. */
+    List<T> ownersOf(String storeName, int count) {
+        int wanted = Math.min(count, onRing.size());
+        List<T> found = new ArrayList<>(wanted);
+        if (points.length == 0) {
+            return found;
+        }
+        int start = pointAtOrAfter(hash(storeName));
+        for (int i = 0; i < points.length && found.size() < wanted; i++) {
+            T owner = owners.get((start + i) % points.length);
+            if (!found.contains(owner)) {
+                found.add(owner);
+            }
+        }
+        return found;
+    }
+
+    /** How many members are on the ring (weight above 0). */
+    int size() {
+        return onRing.size();
+    }
+
+    boolean contains(T member) {
+        return onRing.contains(member);
+    }
+
+    private int pointAtOrAfter(long hash) {
+        int index = Arrays.binarySearch(points, hash);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        // Past the last point wraps around to the first
+        return index == points.length ? 0 : index;
+    }
+
+    // 64-bit FNV-1a, finished with MurmurHash3's mixer so nearby names spread across the ring
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
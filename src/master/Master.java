@@ -3,23 +3,73 @@ package master;
 import java.io.*;
 import java.net.*;
 import java.util.*;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+import common.ServerExecutor;
 import common.Store;
 import common.StoreFileProcessor;
+import common.StoreRanking;
 import common.Product;
+import common.ProductSummary;
+import common.StoreInfo;
+import common.StoreSummary;
 import common.ConfigLoader;
+import common.GeoUtils;
+import common.MessageChannel;
+import common.WorkerReplies;
 
 public class Master {
-    private static int[] workerPorts;
-    private static String[] workerIPs;
-    private static int nextWorkerIndex = 0;
+    // Every worker the Master talks to; during a rebalance this includes workers being drained
+    private static volatile WorkerConnectionPool[] workerPools;
+    // Which workers hold each store; replaced whole, and only while holding rebalanceLock once serving
+    private static volatile Routing routing;
+    private static final int HASH_RING_VNODES = ConfigLoader.getInt("HASH_RING_VNODES", 128);
+    // Copies kept of every store, and which of them may serve
+    private static final Replication replication = new Replication(ConfigLoader.getInt("REPLICATION_FACTOR", 1),
+            ConfigLoader.getInt("WORKER_TIMEOUT_MS", 10000));
+    // How often workers marked down are checked for having come back
+    private static final int REPLICA_PROBE_MS = ConfigLoader.getInt("REPLICA_PROBE_MS", 5000);
+    private static volatile boolean rebalancing;
+    private static final Object rebalanceLock = new Object();
+    // Held shared while stores are registered, exclusively while a rebalance switches rings
+    private static final ReentrantReadWriteLock registrationLock = new ReentrantReadWriteLock();
+    // Changes to a store that is being moved are retried this many times, this far apart
+    private static final int STORE_MOVE_RETRIES = ConfigLoader.getInt("STORE_MOVE_RETRIES", 50);
+    private static final int STORE_MOVE_RETRY_MS = ConfigLoader.getInt("STORE_MOVE_RETRY_MS", 100);
+    private static final int WORKER_POOL_SIZE = ConfigLoader.getInt("WORKER_POOL_SIZE", 2);
+    private static final int WORKER_TIMEOUT_MS = ConfigLoader.getInt("WORKER_TIMEOUT_MS", 10000);
+    private static final int WORKER_DEADLINE_MS = ConfigLoader.getInt("WORKER_DEADLINE_MS", 5000);
+    private static final double NEARBY_RADIUS_KM = ConfigLoader.getDouble("NEARBY_RADIUS_KM", 5.0);
+    private static final int STORE_PAGE_SIZE = ConfigLoader.getInt("STORE_PAGE_SIZE", 20);
+    private static final int STORE_PAGE_SIZE_MAX = ConfigLoader.getInt("STORE_PAGE_SIZE_MAX", 200);
     private static final int REDUCER_PORT = ConfigLoader.getInt("MASTER_REDUCER_PORT", 5002);
+    // Cache of worker store pages; nearby lookups are made from the center of a grid cell of this size
+    private static final double CATALOG_CACHE_CELL_DEGREES = ConfigLoader.getDouble("CATALOG_CACHE_CELL_DEGREES", 0.001);
+    private static final VersionedCache<List<Object>, Map<?, ?>> catalogCache = new VersionedCache<>(
+            ConfigLoader.getInt("CATALOG_CACHE_MAX_ENTRIES", 1000), ConfigLoader.getInt("CATALOG_CACHE_TTL_MS", 5000));
+    // Complete search results by filters and client cell, valid while no worker's catalog or stock changed
+    private static final VersionedCache<List<Object>, List<StoreSummary>> searchCache = new VersionedCache<>(
+            ConfigLoader.getInt("SEARCH_CACHE_MAX_ENTRIES", 1000), ConfigLoader.getInt("SEARCH_CACHE_TTL_MS", 30000));
+    // Searches being run right now by cache key; identical searches wait on the running one
+    private static final Map<List<Object>, CompletableFuture<List<StoreSummary>>> inFlightSearches = new ConcurrentHashMap<>();
     private static ServerSocket reducerServerSocket;
     private static volatile boolean isRunning = true;
 
-    // Map to store search results and their synchronization objects
-    private static final Map<UUID, SearchResult> searchResults = new HashMap<>();
-    private static final Object searchResultsLock = new Object();
+    // Searches waiting on the reducer, by request id
+    private static final Map<UUID, SearchResult> pendingSearches = new ConcurrentHashMap<>();
+    // Writes finished searches to their clients; a pool of its own, since every client pool
+    // thread is held by a connection (settings prefixed MASTER_DELIVERY_, see ServerExecutor)
+    private static final ExecutorService searchDelivery = ServerExecutor.create("MASTER_DELIVERY");
+    // Default and upper bound for how long a search may take; clients can ask for less with timeoutMs
+    private static final int SEARCH_TIMEOUT_MS = ConfigLoader.getInt("SEARCH_TIMEOUT_MS", 30000);
+    // "master": workers answer the search directly and the Master merges the results;
+    // "reducer": workers report to the Reducer process, which suits very large fan-outs
+    private static final boolean REDUCE_IN_MASTER = !ConfigLoader.getString("SEARCH_REDUCE_MODE", "master").equalsIgnoreCase("reducer");
 
     // Map to store client locations
     private static final Map<String, Map<String, Double>> clientLocations = new HashMap<>();
@@ -28,14 +78,16 @@ public class Master {
     public static void main(String[] args) throws UnknownHostException {
         loadConfig("config.txt");
         startReducerListener();
+        startReplicaMonitor();
 
         int masterPort = ConfigLoader.getInt("MASTER_PORT", 5000);
-        try (ServerSocket serverSocket = new ServerSocket(masterPort, 50, InetAddress.getByName("0.0.0.0"))) {
+        ExecutorService clientExecutor = ServerExecutor.create("MASTER");
+        try (ServerSocket serverSocket = new ServerSocket(masterPort, ServerExecutor.backlog("MASTER"), InetAddress.getByName("0.0.0.0"))) {
             System.out.println("Master ready on port " + masterPort);
             System.out.println("Master IP: " + InetAddress.getLocalHost().getHostAddress());
             while (true) {
                 Socket clientSocket = serverSocket.accept();
-                new Thread(new ClientHandler(clientSocket)).start();
+                ServerExecutor.dispatch(clientExecutor, clientSocket, new ClientHandler(clientSocket));
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -53,12 +105,13 @@ public class Master {
 
     private static void startReducerListener() {
         try {
-            reducerServerSocket = new ServerSocket(REDUCER_PORT);
+            reducerServerSocket = new ServerSocket(REDUCER_PORT, ServerExecutor.backlog("MASTER_REDUCER"));
+            ExecutorService reducerExecutor = ServerExecutor.create("MASTER_REDUCER");
             new Thread(() -> {
                 while (isRunning) {
                     try {
                         Socket reducerSocket = reducerServerSocket.accept();
-                        new Thread(() -> handleReducerResponse(reducerSocket)).start();
+                        ServerExecutor.dispatch(reducerExecutor, reducerSocket, () -> handleReducerResponse(reducerSocket));
                     } catch (IOException e) {
                         if (isRunning) {
                             e.printStackTrace();
@@ -74,29 +127,29 @@ public class Master {
     }
 
     private static void handleReducerResponse(Socket reducerSocket) {
-        try (
-                ObjectInputStream in = new ObjectInputStream(reducerSocket.getInputStream())
-        ) {
-            Object response = in.readObject();
+        try (MessageChannel channel = MessageChannel.accept(reducerSocket)) {
+            Object response = channel.readObject();
             System.out.println("Received response from reducer: " + response);
 
-            List<Store> stores;
+            List<StoreInfo> reduced;
             UUID requestId = null;
+            boolean partial = false;
 
             if (response instanceof Map) {
                 @SuppressWarnings("unchecked")
                 Map<String, Object> responseMap = (Map<String, Object>) response;
                 requestId = (UUID) responseMap.get("requestId");
                 @SuppressWarnings("unchecked")
-                List<Store> storesFromMap = (List<Store>) responseMap.get("stores");
-                stores = storesFromMap;
+                List<StoreInfo> storesFromMap = (List<StoreInfo>) responseMap.get("stores");
+                reduced = storesFromMap;
+                partial = Boolean.FALSE.equals(responseMap.get("complete"));
             } else if (response instanceof List) {
                 @SuppressWarnings("unchecked")
-                List<Store> storesFromList = (List<Store>) response;
-                stores = storesFromList;
+                List<StoreInfo> storesFromList = (List<StoreInfo>) response;
+                reduced = storesFromList;
                 // Get the requestId from the first store's metadata if available
-                if (!stores.isEmpty() && stores.get(0) instanceof Store) {
-                    requestId = stores.get(0).getRequestId();
+                if (!reduced.isEmpty() && reduced.get(0) instanceof Store store) {
+                    requestId = store.getRequestId();
                 }
             } else {
                 System.err.println("Unexpected response type from reducer: " + response.getClass().getName());
@@ -104,17 +157,14 @@ public class Master {
                 return;
             }
 
+            List<StoreSummary> stores = reduced != null ? toSummaries(reduced) : null;
+
             if (stores != null && requestId != null) {
-                synchronized (searchResultsLock) {
-                    SearchResult searchResult = searchResults.get(requestId);
-                    if (searchResult != null && !searchResult.isComplete) {
-                        System.out.println("Found matching search result for UUID: " + requestId + " with " + stores.size() + " stores");
-                        // Just store the results without sending to client
-                        searchResult.storeResults(stores);
-                        searchResults.remove(requestId);
-                    } else {
-                        System.err.println("No matching search result found for reducer response with UUID: " + requestId);
-                    }
+                SearchResult searchResult = pendingSearches.remove(requestId);
+                if (searchResult != null && searchResult.complete(stores, partial)) {
+                    System.out.println("Found matching search result for UUID: " + requestId + " with " + stores.size() + " stores");
+                } else {
+                    System.err.println("No matching search result found for reducer response with UUID: " + requestId);
                 }
             } else {
                 System.err.println("Invalid response from reducer - missing stores or requestId");
@@ -132,40 +182,476 @@ public class Master {
     }
 
     private static void loadConfig(String filename) {
+        try {
+            List<String[]> workers = readWorkerConfig(filename);
+
+            // One pool of persistent connections per worker
+            List<WorkerConnectionPool> pools = new ArrayList<>();
+            List<String> addresses = new ArrayList<>();
+            List<Integer> weights = new ArrayList<>();
+            System.out.println("Loaded " + workers.size() + " workers from config:");
+            for (String[] worker : workers) {
+                pools.add(new WorkerConnectionPool(worker[0], Integer.parseInt(worker[1]), WORKER_POOL_SIZE));
+                addresses.add(worker[0] + ":" + worker[1]);
+                weights.add(Integer.parseInt(worker[2]));
+                System.out.println("Worker " + pools.size() + ": " + worker[0] + ":" + worker[1] + " (weight " + worker[2] + ")");
+            }
+            workerPools = pools.toArray(new WorkerConnectionPool[0]);
+            routing = new Routing(new HashRing<>(pools, addresses, weights, HASH_RING_VNODES));
+        } catch (Exception e) {
+            System.err.println("Failed to load config.txt: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // WORKER=ip,port[,weight] lines as {ip, port, weight}; the weight defaults to 1
+    private static List<String[]> readWorkerConfig(String filename) throws IOException {
+        List<String[]> workers = new ArrayList<>();
         try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
             String line;
-            List<Integer> ports = new ArrayList<>();
-            List<String> ips = new ArrayList<>();
             while ((line = reader.readLine()) != null) {
                 if (line.startsWith("WORKER=")) {
                     String[] parts = line.substring(7).split(",");
-                    if (parts.length == 2) {
-                        ips.add(parts[0].trim());
-                        ports.add(Integer.parseInt(parts[1].trim()));
+                    if (parts.length == 2 || parts.length == 3) {
+                        String weight = parts.length == 3 ? parts[2].trim() : "1";
+                        Integer.parseInt(parts[1].trim());
+                        Integer.parseInt(weight);
+                        workers.add(new String[] {parts[0].trim(), parts[1].trim(), weight});
                     }
                 }
             }
-            workerIPs = ips.toArray(new String[0]);
-            workerPorts = ports.stream().mapToInt(i -> i).toArray();
+        }
+        if (workers.isEmpty()) {
+            throw new IOException("No WORKER=ip,port[,weight] lines in " + filename);
+        }
+        return workers;
+    }
+
+    // The workers holding the store, primary first: where a rebalance moved it, else its owners on the ring
+    private static List<WorkerConnectionPool> replicasOf(String storeName) {
+        return routing.replicasOf(storeName, replication.factor());
+    }
+
+    private static WorkerConnectionPool primaryOf(String storeName) {
+        return replication.primary(replicasOf(storeName));
+    }
 
-            if (workerIPs.length != workerPorts.length) {
-                System.err.println("Error: Number of IPs and ports must match in config.txt");
-                System.exit(1);
+    // Send a command about one store to its primary and wait for the response. With replicas, the
+    // change records the primary made are then streamed to them, and a primary that fails is marked
+    // down so the next replica takes over. The command is only sent again to that replica if it never
+    // reached the primary, since a change that timed out may still have been made. A store frozen by
+    // a move answers STORE_MOVING; retry until it has landed on its new workers.
+    private static Object sendToStoreOwner(String storeName, String command, Map<String, Object> payload) throws IOException, InterruptedException {
+        Map<String, Object> request = payload;
+        if (replication.factor() > 1) {
+            request = new HashMap<>(payload);
+            request.put("replicate", true);
+        }
+        for (int attempt = 0; ; attempt++) {
+            List<WorkerConnectionPool> replicas = replicasOf(storeName);
+            WorkerConnectionPool primary = replication.primary(replicas);
+            Object response;
+            try {
+                response = primary.send(command, request, WORKER_TIMEOUT_MS);
+            } catch (IOException e) {
+                if (!replication.markDown(primary, e.getMessage()) || !(e instanceof ConnectException)
+                        || replication.primary(replicasOf(storeName)) == primary || attempt >= STORE_MOVE_RETRIES) {
+                    throw e;
+                }
+                continue;
+            }
+            if (response instanceof Map<?, ?> replicated && replicated.containsKey("changes")) {
+                if (!((List<?>) replicated.get("changes")).isEmpty()) {
+                    replication.forward(replicas, primary, "apply_changes", replicated.get("changes"));
+                }
+                response = replicated.get("response");
             }
+            if (!WorkerReplies.STORE_MOVING.equals(response) || attempt >= STORE_MOVE_RETRIES) {
+                return response;
+            }
+            Thread.sleep(STORE_MOVE_RETRY_MS);
+        }
+    }
 
-            System.out.println("Loaded " + workerIPs.length + " workers from config:");
-            for (int i = 0; i < workerIPs.length; i++) {
-                System.out.println("Worker " + (i+1) + ": " + workerIPs[i] + ":" + workerPorts[i]);
+    // Send a read about one store to one of its copies, taking turns; a copy that cannot be reached
+    // is marked down and another is tried
+    private static Object readFromStore(String storeName, String command, Object payload) throws IOException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            List<WorkerConnectionPool> replicas = replicasOf(storeName);
+            WorkerConnectionPool reader = replication.reader(replicas);
+            try {
+                return reader.send(command, payload, WORKER_TIMEOUT_MS);
+            } catch (IOException e) {
+                if (!replication.markDown(reader, e.getMessage()) || attempt >= replicas.size()) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    // Register a store on its primary and, without waiting, on its replicas
+    private static Object registerStore(Store store) throws IOException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            List<WorkerConnectionPool> replicas = replicasOf(store.getStoreName());
+            WorkerConnectionPool primary = replication.primary(replicas);
+            try {
+                Object response = primary.send("register", store, WORKER_TIMEOUT_MS);
+                replication.forward(replicas, primary, "register", store);
+                return response;
+            } catch (IOException e) {
+                if (!replication.markDown(primary, e.getMessage()) || attempt >= replicas.size()) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    // The workers to send a read over every store to; with replicas, not all of them are needed
+    private static WorkerConnectionPool[] readers() {
+        Routing current = routing;
+        return replication.readers(workerPools, current.ring(), rebalancing || current.hasRelocations());
+    }
+
+    /**
+     * Re-reads config.txt and moves stores so that each lives on its owners in the
+     * new ring, while all workers keep serving. Workers no longer listed are drained
+     * and then dropped. The Master switches to the new ring once every store has
+     * moved; if some could not, it keeps routing moved stores individually and the
+     * rebalance can be run again.
+     */
+    private static Map<String, Object> rebalance(ProgressListener listener) throws IOException, InterruptedException {
+        synchronized (rebalanceLock) {
+            List<String[]> workers = readWorkerConfig("config.txt");
+            WorkerConnectionPool[] current = workerPools;
+
+            // Existing workers keep their connections
+            List<WorkerConnectionPool> members = new ArrayList<>();
+            List<String> addresses = new ArrayList<>();
+            List<Integer> weights = new ArrayList<>();
+            for (String[] worker : workers) {
+                String address = worker[0] + ":" + worker[1];
+                WorkerConnectionPool pool = null;
+                for (WorkerConnectionPool existing : current) {
+                    if (existing.getAddress().equals(address)) {
+                        pool = existing;
+                    }
+                }
+                members.add(pool != null ? pool : new WorkerConnectionPool(worker[0], Integer.parseInt(worker[1]), WORKER_POOL_SIZE));
+                addresses.add(address);
+                weights.add(Integer.parseInt(worker[2]));
+            }
+            HashRing<WorkerConnectionPool> target = new HashRing<>(members, addresses, weights, HASH_RING_VNODES);
+
+            // Leaving workers stay in searches until their stores are gone
+            List<WorkerConnectionPool> everyone = new ArrayList<>(members);
+            for (WorkerConnectionPool pool : current) {
+                if (!everyone.contains(pool)) {
+                    everyone.add(pool);
+                }
+            }
+            workerPools = everyone.toArray(new WorkerConnectionPool[0]);
+            System.out.println("Rebalancing stores across " + members.size() + " workers");
+
+            // Workers marked down are left alone; they are synced to the new ring when they come back
+            Rebalancer rebalancer = new Rebalancer(name -> target.ownersOf(name, replication.factor()), Master::primaryOf,
+                    moved -> routing = routing.withRelocated(moved), WORKER_TIMEOUT_MS);
+            rebalancing = true;
+            try {
+                rebalancer.movePass(replication.reachable(workerPools), Set.of(), listener);
+
+                // A last pass with registrations paused catches stores registered meanwhile, then the rings switch
+                registrationLock.writeLock().lock();
+                try {
+                    rebalancer.movePass(replication.reachable(workerPools), Set.of(), listener);
+                    if (rebalancer.succeeded()) {
+                        routing = new Routing(target);
+                        workerPools = members.toArray(new WorkerConnectionPool[0]);
+                        for (WorkerConnectionPool pool : everyone) {
+                            if (!members.contains(pool)) {
+                                replication.forget(pool);
+                                pool.close();
+                            }
+                        }
+                    }
+                } finally {
+                    registrationLock.writeLock().unlock();
+                }
+            } finally {
+                rebalancing = false;
+            }
+            Map<String, Object> result = rebalancer.progress(true);
+            System.out.println("Rebalance finished: " + result);
+            return result;
+        }
+    }
+
+    // Checks workers marked down every REPLICA_PROBE_MS and syncs the ones that answer again
+    private static void startReplicaMonitor() {
+        if (replication.factor() <= 1) {
+            return;
+        }
+        Thread monitor = new Thread(() -> {
+            while (isRunning) {
+                try {
+                    Thread.sleep(REPLICA_PROBE_MS);
+                    for (WorkerConnectionPool worker : workerPools) {
+                        if (replication.health(worker) == Replication.Health.DOWN && answers(worker)) {
+                            resync(worker);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "replica-monitor");
+        monitor.setDaemon(true);
+        monitor.start();
+    }
+
+    private static boolean answers(WorkerConnectionPool worker) throws InterruptedException {
+        Map<String, Object> query = new HashMap<>();
+        query.put("pageSize", 1);
+        query.put("productView", StoreSummary.PRODUCTS_NONE);
+        try {
+            return worker.send("get_all_stores", query, WORKER_TIMEOUT_MS) instanceof Map<?, ?>;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Brings a worker that was down up to date before it serves again. It takes
+     * changes while it is synced; every store it should hold is copied from the
+     * store's primary (frozen only while the copy is taken), and copies it should
+     * no longer hold are dropped.
+     */
+    private static void resync(WorkerConnectionPool worker) throws InterruptedException {
+        synchronized (rebalanceLock) {
+            System.out.println("Worker " + worker.getAddress() + " is back, syncing its stores");
+            replication.markSyncing(worker);
+            Rebalancer sync = new Rebalancer(Master::replicasOf, Master::primaryOf, null, WORKER_TIMEOUT_MS);
+            try {
+                sync.movePass(replication.reachable(workerPools), Set.of(worker), progress -> { });
+            } catch (IOException e) {
+                // Nobody listens to the progress of a sync
+            }
+            Map<String, Object> result = sync.progress(true);
+            if (sync.succeeded() && replication.markLive(worker)) {
+                System.out.println("Worker " + worker.getAddress() + " is serving again: " + result);
+            } else {
+                replication.markDown(worker, "sync failed: " + result);
+            }
+        }
+    }
+
+    // Send a command to the workers holding every store in parallel; workers that miss the deadline are left out
+    private static Map<Integer, Object> sendToAllWorkers(String command, Object payload) throws InterruptedException {
+        return WorkerFanOut.scatter(readers(), command, payload, WORKER_DEADLINE_MS);
+    }
+
+    /**
+     * One page of stores across all workers, in store name order. Every worker
+     * returns at most pageSize names after the cursor, so the page is a k-way
+     * merge of those and no tier ever holds the whole catalog. The returned map
+     * has the page's "stores" and the "nextCursor" to pass back for the next one
+     * (null on the last page). Workers send summaries with only the products
+     * the query's productView asks for.
+     */
+    private static Map<String, Object> fetchStorePage(String command, Map<String, Object> query) throws InterruptedException {
+        Object requested = query.get("pageSize");
+        int pageSize = requested instanceof Integer size && size > 0 ? Math.min(size, STORE_PAGE_SIZE_MAX) : STORE_PAGE_SIZE;
+        query.put("pageSize", pageSize);
+        if (!(query.get("productView") instanceof String view) || !StoreSummary.isProductView(view)) {
+            query.put("productView", StoreSummary.PRODUCTS_ACTIVE);
+        }
+
+        // Workers whose catalog has not changed since their page was cached are not asked again
+        List<Object> queryKey = Arrays.asList(command, query.get("cursor"), pageSize, query.get("productView"),
+                query.get("latitude"), query.get("longitude"), query.get("radiusKm"));
+        List<Map<?, ?>> responses = new ArrayList<>();
+        List<Integer> misses = new ArrayList<>();
+        WorkerConnectionPool[] pools = readers();
+        long[] versions = new long[pools.length];
+        for (int i = 0; i < pools.length; i++) {
+            versions[i] = pools[i].getCatalogVersion();
+            Map<?, ?> cached = catalogCache.get(workerKey(pools[i], queryKey), versions[i]);
+            if (cached != null) {
+                responses.add(cached);
+            } else {
+                misses.add(i);
+            }
+        }
+        if (!misses.isEmpty()) {
+            for (Map.Entry<Integer, Object> response : WorkerFanOut.scatter(pools, misses, command, query, WORKER_DEADLINE_MS).entrySet()) {
+                if (response.getValue() instanceof Map<?, ?> workerPage) {
+                    // Filed under the version seen before asking, so a change made meanwhile makes it stale
+                    catalogCache.put(workerKey(pools[response.getKey()], queryKey), versions[response.getKey()], workerPage);
+                    responses.add(workerPage);
+                }
             }
-        } catch (Exception e) {
-            System.err.println("Failed to load config.txt: " + e.getMessage());
-            System.exit(1);
         }
+
+        List<List<StoreSummary>> workerPages = new ArrayList<>();
+        boolean workersHaveMore = false;
+        for (Map<?, ?> workerPage : responses) {
+            @SuppressWarnings("unchecked")
+            List<StoreSummary> stores = (List<StoreSummary>) workerPage.get("stores");
+            workerPages.add(stores);
+            workersHaveMore |= workerPage.get("nextCursor") != null;
+        }
+
+        // Replicas of a store answer with the same name; it is counted and shown once
+        Set<String> received = new HashSet<>();
+        for (List<StoreSummary> workerPageStores : workerPages) {
+            for (StoreSummary store : workerPageStores) {
+                received.add(store.getStoreName());
+            }
+        }
+        List<StoreSummary> stores = StoreRanking.mergeDistinct(workerPages, Comparator.comparing(StoreSummary::getStoreName), pageSize);
+        boolean more = workersHaveMore || received.size() > stores.size();
+
+        Map<String, Object> page = new HashMap<>();
+        page.put("stores", stores);
+        page.put("nextCursor", more && !stores.isEmpty() ? stores.get(stores.size() - 1).getStoreName() : null);
+        return page;
+    }
+
+    // Older workers send full stores; keep only what the client is shown
+    private static List<StoreSummary> toSummaries(List<StoreInfo> stores) {
+        List<StoreSummary> summaries = new ArrayList<>(stores.size());
+        for (StoreInfo store : stores) {
+            summaries.add(StoreSummary.from(store, StoreSummary.PRODUCTS_ACTIVE));
+        }
+        return summaries;
+    }
+
+    // Filters in a fixed order with defaults filled in, so equivalent searches share an entry
+    private static List<Object> searchKey(Map<String, Object> searchData) {
+        Object limit = searchData.get("limit") instanceof Integer l && l > 0 ? l : 0;
+        Object sortBy = searchData.get("sortBy") instanceof String sort && !sort.isBlank() ? sort.toLowerCase() : null;
+        return Arrays.asList(searchData.get("foodCategory"), searchData.get("priceCategory"), searchData.get("stars"),
+                limit, sortBy, searchData.get("productView"),
+                searchData.get("latitude"), searchData.get("longitude"), searchData.get("radiusKm"));
+    }
+
+    // Catalog and stock version of every worker, as last reported
+    private static List<Long> workerVersions() {
+        List<Long> versions = new ArrayList<>(workerPools.length * 2);
+        for (WorkerConnectionPool pool : workerPools) {
+            versions.add(pool.getCatalogVersion());
+            versions.add(pool.getStockVersion());
+        }
+        return versions;
+    }
+
+    private static String cacheStats(VersionedCache<?, ?> cache) {
+        long hits = cache.hits();
+        long lookups = hits + cache.misses();
+        return "hits=" + hits + ", misses=" + cache.misses()
+                + String.format(", hit rate=%.1f%%", lookups == 0 ? 0.0 : 100.0 * hits / lookups);
+    }
+
+    private static List<Object> workerKey(WorkerConnectionPool worker, List<Object> queryKey) {
+        List<Object> key = new ArrayList<>(queryKey.size() + 1);
+        key.add(worker.getAddress());
+        key.addAll(queryKey);
+        return key;
     }
 
-    private static int getWorkerIndexForStore(String storeName) {
-        int hash = Math.abs(storeName.hashCode());
-        return hash % workerPorts.length;
+    // Whether queries near a client are asked from the center of its cache cell, so clients in one cell share entries
+    private static boolean useCacheCells(VersionedCache<?, ?> cache) {
+        return cache.isEnabled() && CATALOG_CACHE_CELL_DEGREES > 0;
+    }
+
+    // Center of the cache cell holding the coordinate
+    private static double cellCenter(double degrees) {
+        return (Math.floor(degrees / CATALOG_CACHE_CELL_DEGREES) + 0.5) * CATALOG_CACHE_CELL_DEGREES;
+    }
+
+    // How far any point of the cell can be from its center (its farthest corner, plus a margin),
+    // so a query from the center with the radius widened by this finds every store that a query
+    // from anywhere in the cell would
+    private static double cellReachKm(double centerLatitude, double centerLongitude) {
+        double half = CATALOG_CACHE_CELL_DEGREES / 2;
+        double corner = Math.max(
+                GeoUtils.distanceKm(centerLatitude, centerLongitude, centerLatitude + half, centerLongitude + half),
+                GeoUtils.distanceKm(centerLatitude, centerLongitude, centerLatitude - half, centerLongitude + half));
+        return corner * 1.01;
+    }
+
+    // A client's search results taken from those found for its cell: the stores within its radius,
+    // ranked from where it is and cut to its limit
+    private static Function<List<StoreSummary>, List<StoreSummary>> clientView(double latitude, double longitude,
+                                                                              double radiusKm, String sortBy, int limit) {
+        Comparator<StoreInfo> order = StoreRanking.comparator(sortBy, latitude, longitude);
+        return stores -> {
+            List<StoreSummary> inRange = new ArrayList<>();
+            for (StoreSummary store : stores) {
+                if (GeoUtils.isWithinKm(latitude, longitude, store.getLatitude(), store.getLongitude(), radiusKm)) {
+                    inRange.add(store);
+                }
+            }
+            if (order != null) {
+                return StoreRanking.topK(inRange, order, limit);
+            }
+            return limit > 0 && inRange.size() > limit ? new ArrayList<>(inRange.subList(0, limit)) : inRange;
+        };
+    }
+
+    /**
+     * One page of the stores within radiusKm of a client, in name order (see
+     * {@link #fetchStorePage}). With cache cells on, workers are asked from the
+     * center of the client's cell with the radius widened to cover the whole cell,
+     * so every client in the cell shares the cached worker pages, and the client's
+     * page is cut from them by its exact distance.
+     */
+    private static Map<String, Object> fetchNearbyPage(double latitude, double longitude, double radiusKm,
+                                                       Map<String, Object> request) throws InterruptedException {
+        Map<String, Object> query = new HashMap<>();
+        query.put("cursor", request.get("cursor"));
+        query.put("pageSize", request.get("pageSize"));
+        query.put("productView", request.get("productView"));
+        if (!useCacheCells(catalogCache)) {
+            query.put("latitude", latitude);
+            query.put("longitude", longitude);
+            query.put("radiusKm", radiusKm);
+            return fetchStorePage("nearby_stores", query);
+        }
+        double centerLatitude = cellCenter(latitude);
+        double centerLongitude = cellCenter(longitude);
+        query.put("latitude", centerLatitude);
+        query.put("longitude", centerLongitude);
+        query.put("radiusKm", radiusKm + cellReachKm(centerLatitude, centerLongitude));
+
+        List<StoreSummary> stores = new ArrayList<>();
+        String nextCursor = null;
+        pages:
+        while (true) {
+            Map<String, Object> cellPage = fetchStorePage("nearby_stores", query);
+            int pageSize = (Integer) query.get("pageSize");
+            @SuppressWarnings("unchecked")
+            List<StoreSummary> cellStores = (List<StoreSummary>) cellPage.get("stores");
+            for (StoreSummary store : cellStores) {
+                if (!GeoUtils.isWithinKm(latitude, longitude, store.getLatitude(), store.getLongitude(), radiusKm)) {
+                    continue;
+                }
+                if (stores.size() == pageSize) {
+                    // Another store in range follows, so there is a next page
+                    nextCursor = stores.get(stores.size() - 1).getStoreName();
+                    break pages;
+                }
+                stores.add(store);
+            }
+            if (cellPage.get("nextCursor") == null) {
+                break;
+            }
+            query.put("cursor", cellPage.get("nextCursor"));
+        }
+
+        Map<String, Object> page = new HashMap<>();
+        page.put("stores", stores);
+        page.put("nextCursor", nextCursor);
+        return page;
     }
 
     private static class ClientHandler implements Runnable {
@@ -177,13 +663,10 @@ public class Master {
 
         @Override
         public void run() {
-            try (
-                    ObjectInputStream in = new ObjectInputStream(clientSocket.getInputStream());
-                    ObjectOutputStream out = new ObjectOutputStream(clientSocket.getOutputStream())
-            ) {
+            try (MessageChannel channel = MessageChannel.accept(clientSocket)) {
                 while (true) {
-                    String command = (String) in.readObject();
-                    Object userinput = in.readObject();
+                    String command = (String) channel.readObject();
+                    Object userinput = channel.readObject();
 
                     if (command.equals("exit")) {
                         System.out.println("Client action.");
@@ -195,24 +678,54 @@ public class Master {
                             String path = (String) userinput;
 
                             Store store = StoreFileProcessor.processStoreFile(path);
-                            int workerIndex = getWorkerIndexForStore(store.getStoreName());
-                            String workerIP = workerIPs[workerIndex];
-                            int workerPort = workerPorts[workerIndex];
-
-                            try (
-                                    Socket wSocket = new Socket(workerIP, workerPort);
-                                    ObjectOutputStream wOut = new ObjectOutputStream(wSocket.getOutputStream());
-                                    ObjectInputStream wIn = new ObjectInputStream(wSocket.getInputStream())
-                            ) {
-                                // Send to worker
-                                wOut.writeObject("register");
-                                wOut.writeObject(store);
-                                wOut.flush();
-                                // Wait for worker's response
-                                Object response = wIn.readObject();
-                                out.writeObject(response);
-                                out.flush();
+
+                            // Send to worker and wait for its response
+                            Object response;
+                            registrationLock.readLock().lock();
+                            try {
+                                response = registerStore(store);
+                            } finally {
+                                registrationLock.readLock().unlock();
+                            }
+                            channel.writeObject(response);
+                            channel.flush();
+                            break;
+                        }
+
+                        case "bulk_register": {
+                            // Progress reports go out while the import runs, then the final counts
+                            String path = (String) userinput;
+                            Object response;
+                            registrationLock.readLock().lock();
+                            try {
+                                response = new BulkImport(Master::replicasOf, replication, WORKER_TIMEOUT_MS)
+                                        .run(path, progress -> {
+                                            channel.writeObject(progress);
+                                            channel.flush();
+                                        });
+                            } catch (IOException e) {
+                                response = "Error: " + e.getMessage();
+                            } finally {
+                                registrationLock.readLock().unlock();
+                            }
+                            channel.writeObject(response);
+                            channel.flush();
+                            break;
+                        }
+
+                        case "rebalance": {
+                            // Progress reports go out after every batch of moved stores, then the final counts
+                            Object response;
+                            try {
+                                response = rebalance(progress -> {
+                                    channel.writeObject(progress);
+                                    channel.flush();
+                                });
+                            } catch (IOException e) {
+                                response = "Error: " + e.getMessage();
                             }
+                            channel.writeObject(response);
+                            channel.flush();
                             break;
                         }
 
@@ -221,27 +734,14 @@ public class Master {
                             Map<String, Object> updates = (Map<String, Object>) userinput;
                             String storeName = (String) updates.get("storeName");
 
-                            // Get the worker for this store
-                            int workerIndex = getWorkerIndexForStore(storeName);
-                            String workerIP = workerIPs[workerIndex];
-                            int workerPort = workerPorts[workerIndex];
-
-                            try (
-                                    Socket wSocket = new Socket(workerIP, workerPort);
-                                    ObjectOutputStream wOut = new ObjectOutputStream(wSocket.getOutputStream());
-                                    ObjectInputStream wIn = new ObjectInputStream(wSocket.getInputStream())
-                            ) {
-                                wOut.writeObject(command);
-                                wOut.writeObject(updates);
-                                wOut.flush();
-
-                                Object response = wIn.readObject();
-                                out.writeObject(response);
-                                out.flush();
+                            try {
+                                Object response = sendToStoreOwner(storeName, command, updates);
+                                channel.writeObject(response);
+                                channel.flush();
 
                             } catch (Exception e) {
-                                out.writeObject("Error updating product: " + e.getMessage());
-                                out.flush();
+                                channel.writeObject("Error updating product: " + e.getMessage());
+                                channel.flush();
                             }
                             break;
                         }
@@ -249,21 +749,8 @@ public class Master {
                         case "sales_by_product": {
                             String storeName = (String) userinput;
 
-                            // Get the worker for this store
-                            int workerIndex = getWorkerIndexForStore(storeName);
-                            String workerIP = workerIPs[workerIndex];
-                            int workerPort = workerPorts[workerIndex];
-
-                            try (
-                                    Socket wSocket = new Socket(workerIP, workerPort);
-                                    ObjectOutputStream wOut = new ObjectOutputStream(wSocket.getOutputStream());
-                                    ObjectInputStream wIn = new ObjectInputStream(wSocket.getInputStream())
-                            ) {
-                                wOut.writeObject("sales_by_product");
-                                wOut.writeObject(storeName);
-                                wOut.flush();
-
-                                Object response = wIn.readObject();
+                            try {
+                                Object response = readFromStore(storeName, "sales_by_product", storeName);
                                 if (response instanceof Map<?, ?> productsMap) {
                                     @SuppressWarnings("unchecked")
                                     Map<String, List<Product>> storeProducts = (Map<String, List<Product>>) productsMap;
@@ -293,14 +780,14 @@ public class Master {
                                     report.append("----------------------------------------\n");
                                     report.append(String.format("Total Store Sales: $%.2f\n", totalStoreSales));
 
-                                    out.writeObject(report.toString());
+                                    channel.writeObject(report.toString());
                                 } else {
-                                    out.writeObject("Error: Invalid response format from worker");
+                                    channel.writeObject("Error: Invalid response format from worker");
                                 }
-                                out.flush();
+                                channel.flush();
                             } catch (Exception e) {
-                                out.writeObject("Error calculating sales: " + e.getMessage());
-                                out.flush();
+                                channel.writeObject("Error calculating sales: " + e.getMessage());
+                                channel.flush();
                             }
                             break;
                         }
@@ -310,27 +797,16 @@ public class Master {
                             Map<String, Double> storeSales = new HashMap<>();
                             double totalSales = 0.0;
 
-                            for (int i = 0; i < workerIPs.length; i++) {
-                                try (
-                                        Socket wSocket = new Socket(workerIPs[i], workerPorts[i]);
-                                        ObjectOutputStream wOut = new ObjectOutputStream(wSocket.getOutputStream());
-                                        ObjectInputStream wIn = new ObjectInputStream(wSocket.getInputStream())
-                                ) {
-                                    wOut.writeObject("sales_by_food_category");
-                                    wOut.writeObject(foodCategory);
-                                    wOut.flush();
-
-                                    Object response = wIn.readObject();
-                                    if (response instanceof Map<?, ?> map) {
-                                        @SuppressWarnings("unchecked")
-                                        Map<String, Double> partial = (Map<String, Double>) map;
-                                        for (Map.Entry<String, Double> entry : partial.entrySet()) {
-                                            storeSales.merge(entry.getKey(), entry.getValue(), Double::sum);
+                            for (Object response : sendToAllWorkers("sales_by_food_category", foodCategory).values()) {
+                                if (response instanceof Map<?, ?> map) {
+                                    @SuppressWarnings("unchecked")
+                                    Map<String, Double> partial = (Map<String, Double>) map;
+                                    for (Map.Entry<String, Double> entry : partial.entrySet()) {
+                                        // A replicated store is reported by each copy asked; count it once
+                                        if (storeSales.putIfAbsent(entry.getKey(), entry.getValue()) == null) {
                                             totalSales += entry.getValue();
                                         }
                                     }
-                                } catch (Exception e) {
-                                    System.err.println("Error contacting worker at " + workerIPs[i] + ":" + workerPorts[i] + ": " + e.getMessage());
                                 }
                             }
 
@@ -341,8 +817,8 @@ public class Master {
                             }
                             report.append("----------------------------------------\n");
                             report.append(String.format("Total: $%.2f\n", totalSales));
-                            out.writeObject(report.toString());
-                            out.flush();
+                            channel.writeObject(report.toString());
+                            channel.flush();
                             break;
                         }
 
@@ -351,27 +827,16 @@ public class Master {
                             Map<String, Double> storeSales = new HashMap<>();
                             double totalSales = 0.0;
 
-                            for (int i = 0; i < workerIPs.length; i++) {
-                                try (
-                                        Socket wSocket = new Socket(workerIPs[i], workerPorts[i]);
-                                        ObjectOutputStream wOut = new ObjectOutputStream(wSocket.getOutputStream());
-                                        ObjectInputStream wIn = new ObjectInputStream(wSocket.getInputStream())
-                                ) {
-                                    wOut.writeObject("sales_by_product_type");
-                                    wOut.writeObject(productType);
-                                    wOut.flush();
-
-                                    Object response = wIn.readObject();
-                                    if (response instanceof Map<?, ?> map) {
-                                        @SuppressWarnings("unchecked")
-                                        Map<String, Double> partial = (Map<String, Double>) map;
-                                        for (Map.Entry<String, Double> entry : partial.entrySet()) {
-                                            storeSales.merge(entry.getKey(), entry.getValue(), Double::sum);
+                            for (Object response : sendToAllWorkers("sales_by_product_type", productType).values()) {
+                                if (response instanceof Map<?, ?> map) {
+                                    @SuppressWarnings("unchecked")
+                                    Map<String, Double> partial = (Map<String, Double>) map;
+                                    for (Map.Entry<String, Double> entry : partial.entrySet()) {
+                                        // A replicated store is reported by each copy asked; count it once
+                                        if (storeSales.putIfAbsent(entry.getKey(), entry.getValue()) == null) {
                                             totalSales += entry.getValue();
                                         }
                                     }
-                                } catch (Exception e) {
-                                    System.err.println("Error contacting worker at " + workerIPs[i] + ":" + workerPorts[i] + ": " + e.getMessage());
                                 }
                             }
 
@@ -382,33 +847,26 @@ public class Master {
                             }
                             report.append("----------------------------------------\n");
                             report.append(String.format("Total: $%.2f\n", totalSales));
-                            out.writeObject(report.toString());
-                            out.flush();
+                            channel.writeObject(report.toString());
+                            channel.flush();
                             break;
                         }
 
                         case "get_all_stores": {
-                            List<Store> allStores = new ArrayList<>();
-                            for (int i = 0; i < workerIPs.length; i++) {
-                                try (
-                                        Socket wSocket = new Socket(workerIPs[i], workerPorts[i]);
-                                        ObjectOutputStream wOut = new ObjectOutputStream(wSocket.getOutputStream());
-                                        ObjectInputStream wIn = new ObjectInputStream(wSocket.getInputStream())
-                                ) {
-                                    wOut.writeObject("get_all_stores");
-                                    wOut.writeObject("none");
-                                    wOut.flush();
-                                    @SuppressWarnings("unchecked")
-                                    List<Store> stores = (List<Store>) wIn.readObject();
-                                    allStores.addAll(stores);
-                                } catch (Exception e) {
-                                    System.err.println("Worker not responding at " + workerIPs[i] + ":" + workerPorts[i]);
-                                }
+                            // A map with an optional cursor and pageSize; older clients send "none"
+                            Map<String, Object> query = new HashMap<>();
+                            if (userinput instanceof Map<?, ?> request) {
+                                query.put("cursor", request.get("cursor"));
+                                query.put("pageSize", request.get("pageSize"));
+                                query.put("productView", request.get("productView"));
                             }
+                            Map<String, Object> page = fetchStorePage("get_all_stores", query);
+                            @SuppressWarnings("unchecked")
+                            List<StoreSummary> pageStores = (List<StoreSummary>) page.get("stores");
 
                             // Transform stores into detailed maps
                             List<Map<String, Object>> detailedStores = new ArrayList<>();
-                            for (Store store : allStores) {
+                            for (StoreSummary store : pageStores) {
                                 Map<String, Object> storeDetails = new HashMap<>();
                                 storeDetails.put("storeName", store.getStoreName());
                                 storeDetails.put("foodCategory", store.getFoodCategory());
@@ -419,7 +877,7 @@ public class Master {
 
                                 // Add detailed product information
                                 List<Map<String, Object>> productDetails = new ArrayList<>();
-                                for (Product product : store.getProducts()) {
+                                for (ProductSummary product : store.getProducts()) {
                                     if (product.isActive()) {
                                         Map<String, Object> productInfo = new HashMap<>();
                                         productInfo.put("name", product.getProductName());
@@ -433,16 +891,25 @@ public class Master {
                                 detailedStores.add(storeDetails);
                             }
 
-                            out.writeObject(detailedStores);
-                            out.flush();
+                            Map<String, Object> response = new HashMap<>();
+                            response.put("stores", detailedStores);
+                            response.put("nextCursor", page.get("nextCursor"));
+                            channel.writeObject(response);
+                            channel.flush();
                             break;
                         }
 
                         case "show_stores": {
                             @SuppressWarnings("unchecked")
-                            Map<String, Double> location = (Map<String, Double>) userinput;
-                            double userLat = location.get("latitude");
-                            double userLon = location.get("longitude");
+                            Map<String, Object> request = (Map<String, Object>) userinput;
+                            double userLat = (Double) request.get("latitude");
+                            double userLon = (Double) request.get("longitude");
+                            Map<String, Double> location = new HashMap<>();
+                            location.put("latitude", userLat);
+                            location.put("longitude", userLon);
+                            if (request.get("radiusKm") instanceof Double radiusKm) {
+                                location.put("radiusKm", radiusKm);
+                            }
 
                             // Store client location
                             String clientAddress = clientSocket.getRemoteSocketAddress().toString();
@@ -450,33 +917,14 @@ public class Master {
                                 clientLocations.put(clientAddress, location);
                             }
 
-                            List<Store> nearbyStores = new ArrayList<>();
-
-                            for (int i = 0; i < workerIPs.length; i++) {
-                                try (
-                                        Socket wSocket = new Socket(workerIPs[i], workerPorts[i]);
-                                        ObjectOutputStream wOut = new ObjectOutputStream(wSocket.getOutputStream());
-                                        ObjectInputStream wIn = new ObjectInputStream(wSocket.getInputStream())
-                                ) {
-                                    wOut.writeObject("get_all_stores");
-                                    wOut.writeObject("none");
-                                    wOut.flush();
-                                    @SuppressWarnings("unchecked")
-                                    List<Store> stores = (List<Store>) wIn.readObject();
-                                    for (Store store : stores) {
-                                        if (isWithin5Km(userLat, userLon, store.getLatitude(), store.getLongitude())) {
-                                            nearbyStores.add(store);
-                                            System.out.println("found" + store.getStoreName());
-                                        }
-                                    }
-                                    System.out.println(nearbyStores.size());
-                                } catch (Exception e) {
-                                    System.err.println("Worker not responding at " + workerIPs[i] + ":" + workerPorts[i]);
-                                }
-                            }
-                            System.out.println("Found " + nearbyStores.size() + " stores within 5km of (" + userLat + ", " + userLon + ")");
+                            // Each worker answers from its spatial index with only the stores in range
+                            double radiusKm = location.getOrDefault("radiusKm", NEARBY_RADIUS_KM);
+                            Map<String, Object> page = fetchNearbyPage(userLat, userLon, radiusKm, request);
+                            @SuppressWarnings("unchecked")
+                            List<StoreSummary> nearbyStores = (List<StoreSummary>) page.get("stores");
+                            System.out.println("Sending " + nearbyStores.size() + " stores within " + radiusKm + "km of (" + userLat + ", " + userLon + ")");
                             List<Map<String, Object>> detailedStores = new ArrayList<>();
-                            for (Store store : nearbyStores) {
+                            for (StoreSummary store : nearbyStores) {
                                 Map<String, Object> storeDetails = new HashMap<>();
                                 storeDetails.put("storeName", store.getStoreName());
                                 storeDetails.put("foodCategory", store.getFoodCategory());
@@ -488,7 +936,7 @@ public class Master {
 
                                 // Add detailed product information
                                 List<Map<String, Object>> productDetails = new ArrayList<>();
-                                for (Product product : store.getProducts()) {
+                                for (ProductSummary product : store.getProducts()) {
                                     if (product.isActive()) {
                                         Map<String, Object> productInfo = new HashMap<>();
                                         productInfo.put("name", product.getProductName());
@@ -503,36 +951,27 @@ public class Master {
                                 detailedStores.add(storeDetails);
                             }
 
-                            out.writeObject(detailedStores);
-                            out.flush();
+                            Map<String, Object> response = new HashMap<>();
+                            response.put("stores", detailedStores);
+                            response.put("nextCursor", page.get("nextCursor"));
+                            channel.writeObject(response);
+                            channel.flush();
                             break;
                         }
 
-                        case "purchase", "rate": {
+                        case "purchase", "rate", "checkout": {
                             @SuppressWarnings("unchecked")
                             Map<String, Object> purchaseOrRateData = (Map<String, Object>) userinput;
                             String storeName = (String) purchaseOrRateData.get("storeName");
 
-                            int workerIndex = getWorkerIndexForStore(storeName);
-                            String workerIP = workerIPs[workerIndex];
-                            int workerPort = workerPorts[workerIndex];
-
-                            try (
-                                    Socket wSocket = new Socket(workerIP, workerPort);
-                                    ObjectOutputStream wOut = new ObjectOutputStream(wSocket.getOutputStream());
-                                    ObjectInputStream wIn = new ObjectInputStream(wSocket.getInputStream())
-                            ) {
-                                wOut.writeObject(command);
-                                wOut.writeObject(purchaseOrRateData);
-                                wOut.flush();
-
-                                Object response = wIn.readObject();
-                                out.writeObject(response);
-                                out.flush();
+                            try {
+                                Object response = sendToStoreOwner(storeName, command, purchaseOrRateData);
+                                channel.writeObject(response);
+                                channel.flush();
 
                             } catch (Exception e) {
-                                out.writeObject("Error handling purchase/rate: " + e.getMessage());
-                                out.flush();
+                                channel.writeObject("Error handling " + command + ": " + e.getMessage());
+                                channel.flush();
                             }
                             break;
                         }
@@ -553,90 +992,134 @@ public class Master {
                             }
 
                             if (clientLocation == null) {
-                                out.writeObject("Error: Please set your location first using the 'show_stores' option");
-                                out.flush();
+                                channel.writeObject("Error: Please set your location first using the 'show_stores' option");
+                                channel.flush();
                                 break;
                             }
 
-                            // Create and register search result object with client's output stream
-                            SearchResult searchResult = new SearchResult(out, clientAddress, searchData,
-                                    clientLocation.get("latitude"), clientLocation.get("longitude"));
-                            synchronized (searchResultsLock) {
-                                searchResults.put(requestId, searchResult);
+                            // Reject an unknown sort order here rather than on every worker
+                            try {
+                                StoreRanking.comparator((String) searchData.get("sortBy"), 0, 0);
+                            } catch (IllegalArgumentException e) {
+                                channel.writeObject("Error: " + e.getMessage() + " (use distance, stars, votes or price)");
+                                channel.flush();
+                                break;
                             }
-
-                            // Send search request to all workers
-                            for (int i = 0; i < workerIPs.length; i++) {
-                                try (
-                                        Socket wSocket = new Socket(workerIPs[i], workerPorts[i]);
-                                        ObjectOutputStream wOut = new ObjectOutputStream(wSocket.getOutputStream());
-                                        ObjectInputStream wIn = new ObjectInputStream(wSocket.getInputStream())
-                                ) {
-                                    wOut.writeObject("search");
-                                    wOut.writeObject(searchData);
-                                    wOut.flush();
-                                    Object response = wIn.readObject();
-                                    System.out.println("Worker " + workerIPs[i] + ":" + workerPorts[i] + " response for request " + requestId + " from client " + clientAddress);
-                                } catch (Exception e) {
-                                    System.err.println("Worker not responding at " + workerIPs[i] + ":" + workerPorts[i] + " for request " + requestId + " from client " + clientAddress);
-                                }
+                            if (!(searchData.get("productView") instanceof String view) || !StoreSummary.isProductView(view)
+                                    // Stores are ranked by price from the products sent with them
+                                    || view.equals(StoreSummary.PRODUCTS_NONE) && "price".equalsIgnoreCase((String) searchData.get("sortBy"))) {
+                                searchData.put("productView", StoreSummary.PRODUCTS_ACTIVE);
                             }
 
-                            try {
-                                System.out.println("Waiting for reducer response for request " + requestId + " from client " + clientAddress);
-                                // Wait for the reducer's response with a timeout
-                                List<Store> finalResult = searchResult.getResults(30000); // timeout
-
-                                if (finalResult == null) {
-                                    System.out.println("Search timed out for request " + requestId + " from client " + clientAddress);
-                                    synchronized (searchResultsLock) {
-                                        searchResults.remove(requestId);
-                                    }
-                                    out.writeObject("Search timed out after 30 seconds");
-                                    out.flush();
-                                    break;
-                                }
+                            // Workers drop stores out of range before anything is sent on
+                            double clientLat = clientLocation.get("latitude");
+                            double clientLon = clientLocation.get("longitude");
+                            double radiusKm = clientLocation.getOrDefault("radiusKm", NEARBY_RADIUS_KM);
+                            Function<List<StoreSummary>, List<StoreSummary>> view = stores -> stores;
+                            if (useCacheCells(searchCache)) {
+                                // Every match near the client's cell, unranked, shared by the cell; the client's
+                                // results are cut from it (see clientView)
+                                double centerLat = cellCenter(clientLat);
+                                double centerLon = cellCenter(clientLon);
+                                Object limit = searchData.remove("limit");
+                                view = clientView(clientLat, clientLon, radiusKm, (String) searchData.remove("sortBy"),
+                                        limit instanceof Integer l ? l : 0);
+                                searchData.put("latitude", centerLat);
+                                searchData.put("longitude", centerLon);
+                                searchData.put("radiusKm", radiusKm + cellReachKm(centerLat, centerLon));
+                            } else {
+                                searchData.put("latitude", clientLat);
+                                searchData.put("longitude", clientLon);
+                                searchData.put("radiusKm", radiusKm);
+                            }
+                            // The reducer answers once this many workers reported, or at its deadline
+                            WorkerConnectionPool[] pools = readers();
+                            searchData.put("expectedWorkers", pools.length);
+                            searchData.put("reduceMode", REDUCE_IN_MASTER ? "master" : "reducer");
+
+                            List<Object> cacheKey = searchKey(searchData);
+                            List<Long> versions = workerVersions();
+                            List<StoreSummary> cached = searchCache.get(cacheKey, versions);
+                            SearchResult searchResult = new SearchResult(channel, clientAddress, searchData);
+                            if (cached != null) {
+                                System.out.println("Search cache hit for client " + clientAddress + " (" + cacheStats(searchCache) + ")");
+                                searchResult.deliver(view.apply(cached));
+                                break;
+                            }
+                            System.out.println("Search cache miss for client " + clientAddress + " (" + cacheStats(searchCache) + ")");
 
-                                // Filter stores by distance
-                                List<Store> nearbyStores = new ArrayList<>();
-                                for (Store store : finalResult) {
-                                    if (isWithin5Km(clientLocation.get("latitude"), clientLocation.get("longitude"),
-                                            store.getLatitude(), store.getLongitude())) {
-                                        nearbyStores.add(store);
-                                        System.out.println("NEARBY STORE ADDED: " + store.getStoreName());
-                                    }
-                                }
+                            long timeoutMs = SEARCH_TIMEOUT_MS;
+                            if (searchData.get("timeoutMs") instanceof Integer requested && requested > 0) {
+                                timeoutMs = Math.min(requested, SEARCH_TIMEOUT_MS);
+                            }
 
-                                // Update the results with only nearby stores
-                                searchResult.setResults(nearbyStores);
+                            // Single flight: if the same search is already running, share its result
+                            CompletableFuture<List<StoreSummary>> flight = new CompletableFuture<>();
+                            CompletableFuture<List<StoreSummary>> running = inFlightSearches.putIfAbsent(cacheKey, flight);
+                            if (running != null) {
+                                System.out.println("Client " + clientAddress + " joined an identical search already in flight");
+                                searchResult.deliverWhenDone(running, timeoutMs, view, searchDelivery, (stores, error) -> { });
+                                break;
+                            }
 
-                                System.out.println("Received results from reducer for request " + requestId + " from client " + clientAddress);
-                            } catch (InterruptedException e) {
-                                System.err.println("Search was interrupted for request " + requestId + " from client " + clientAddress);
-                                synchronized (searchResultsLock) {
-                                    searchResults.remove(requestId);
+                            // The reply goes out from a callback when the reducer answers or the
+                            // deadline passes, so this thread goes straight back to reading requests
+                            searchResult.deliverWhenDone(searchResult.future(), timeoutMs, view, searchDelivery, (stores, error) -> {
+                                pendingSearches.remove(requestId);
+                                inFlightSearches.remove(cacheKey, flight);
+                                flight.complete(stores);
+                                // Partial results are not cached, so the next search asks the missing workers again
+                                if (stores != null && !searchResult.isPartial()) {
+                                    searchCache.put(cacheKey, versions, stores);
                                 }
-                                out.writeObject("Search was interrupted");
-                                out.flush();
-                            } catch (Exception e) {
-                                System.err.println("Error during search for request " + requestId + " from client " + clientAddress + ": " + e.getMessage());
-                                synchronized (searchResultsLock) {
-                                    searchResults.remove(requestId);
+                                System.out.println("Search " + requestId + " for client " + clientAddress
+                                        + (stores != null ? " answered with " + stores.size() + " stores" : " failed"));
+                            });
+
+                            if (REDUCE_IN_MASTER) {
+                                // Each worker answers with its partial result, merged here as it arrives
+                                SearchAggregation aggregation = new SearchAggregation(requestId, pools.length);
+                                for (WorkerConnectionPool pool : pools) {
+                                    pool.sendAsync("search", searchData).orTimeout(WORKER_DEADLINE_MS, TimeUnit.MILLISECONDS)
+                                            .whenComplete((partial, error) -> {
+                                                boolean finished;
+                                                if (error == null && partial instanceof Map<?, ?> map) {
+                                                    @SuppressWarnings("unchecked")
+                                                    Map<String, Object> workerResult = (Map<String, Object>) map;
+                                                    finished = aggregation.merge(workerResult);
+                                                } else {
+                                                    System.err.println("Worker " + pool.getAddress() + " gave no result for search " + requestId
+                                                            + ": " + (error != null ? error.getMessage() : partial));
+                                                    finished = aggregation.skip();
+                                                }
+                                                if (finished) {
+                                                    searchResult.complete(toSummaries(aggregation.result()), !aggregation.isComplete());
+                                                }
+                                            });
                                 }
-                                out.writeObject("Error during search: " + e.getMessage());
-                                out.flush();
+                                break;
+                            }
+
+                            // Send the search to the chosen workers at once; they acknowledge and report to the reducer
+                            pendingSearches.put(requestId, searchResult);
+                            for (WorkerConnectionPool pool : pools) {
+                                pool.sendAsync("search", searchData).whenComplete((ack, error) -> {
+                                    if (error != null) {
+                                        System.err.println("Worker " + pool.getAddress() + " did not take search " + requestId + ": " + error.getMessage());
+                                    }
+                                });
                             }
                             break;
                         }
 
                         default: {
-                            out.writeObject("Unknown command: " + command);
-                            out.flush();
+                            channel.writeObject("Unknown command: " + command);
+                            channel.flush();
                         }
                     }
 
 
-                    String cont = (String) in.readObject();
+                    String cont = (String) channel.readObject();
                     if (!cont.equalsIgnoreCase("yes")) {
                         System.out.println("Client action");
                         break;
@@ -653,21 +1136,5 @@ public class Master {
             }
         }
     }
-
-    public static boolean isWithin5Km(double lat1, double lon1, double lat2, double lon2) {
-        final int EARTH_RADIUS_KM = 6371; // Earth's radius in kilometers
-
-        double dLat = Math.toRadians(lat2 - lat1);
-        double dLon = Math.toRadians(lon2 - lon1);
-
-        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) +
-                Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) *
-                        Math.sin(dLon / 2) * Math.sin(dLon / 2);
-
-        double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
-        double distance = EARTH_RADIUS_KM * c;
-
-        return distance <= 5.0;
-    }
 }
 
@@ -0,0 +1,9 @@
+package master;
+
+import java.io.IOException;
+import java.util.Map;
+
+/** Receives progress reports from a long-running Manager command, e.g. to send them back to the Manager. */
+interface ProgressListener {
+    void report(Map<String, Object> progress) throws IOException;
+}
@@ -0,0 +1,224 @@
+package master;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import common.ConfigLoader;
+import common.Store;
+import common.StoreSummary;
+import common.WorkerReplies;
+
+/**
+ * Moves stores onto the workers a placement gives them while the workers keep
+ * serving. A rebalance places stores by the new hash ring; a worker coming back
+ * after being down is brought up to date by placing stores by the current ring
+ * with its own copies treated as stale.
+ *
+ * Each pass lists every worker's store names and moves the stores that are not
+ * exactly where they belong, REBALANCE_BATCH_SIZE at a time:
+ *   1. export_stores: the stores' primary freezes them (reads go on, changes
+ *      are refused with {@link WorkerReplies#STORE_MOVING}) and returns copies;
+ *   2. sync_stores: each worker that should hold the stores and does not (or
+ *      holds stale copies) gets the copies;
+ *   3. the Master records the new location, so requests now go there;
+ *   4. drop_stores: workers that should no longer hold the stores delete them,
+ *      and the primary thaws its copies if it keeps them.
+ * If a copy cannot be made the stores are thawed and stay where they were.
+ */
+class Rebalancer {
+    private static final int BATCH_SIZE = ConfigLoader.getInt("REBALANCE_BATCH_SIZE", 50);
+    private static final int LIST_PAGE_SIZE = 500;
+    private static final int MAX_ERRORS = 20;
+
+    // The workers each store belongs on, primary first
+    private final Function<String, List<WorkerConnectionPool>> placement;
+    // The worker taking each store's changes right now
+    private final Function<String, WorkerConnectionPool> primaryOf;
+    // Told where each batch of moved stores now lives, until the new ring takes over; null if placement is not changing
+    private final Consumer<Map<String, List<WorkerConnectionPool>>> relocated;
+    private final long timeoutMs;
+    private final long started = System.currentTimeMillis();
+    private int moved;
+    private int failed;
+    private final List<String> errors = new ArrayList<>();
+
+    Rebalancer(Function<String, List<WorkerConnectionPool>> placement, Function<String, WorkerConnectionPool> primaryOf,
+               Consumer<Map<String, List<WorkerConnectionPool>>> relocated, long timeoutMs) {
+        this.placement = placement;
+        this.primaryOf = primaryOf;
+        this.relocated = relocated;
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * Moves every store on the given workers that is not where the placement puts it.
+     * Copies on stale workers are overwritten where they belong and dropped elsewhere.
+     */
+    void movePass(WorkerConnectionPool[] workers, Set<WorkerConnectionPool> stale, ProgressListener listener)
+            throws IOException, InterruptedException {
+        // A store that failed once is retried by the next pass; only the last pass decides success
+        failed = 0;
+        Map<String, List<WorkerConnectionPool>> holders = new HashMap<>();
+        for (WorkerConnectionPool worker : workers) {
+            listStores(worker, holders);
+        }
+
+        // Stores grouped by where they are copied from, who holds them and where they belong
+        Map<List<Object>, Move> moves = new LinkedHashMap<>();
+        for (Map.Entry<String, List<WorkerConnectionPool>> store : holders.entrySet()) {
+            List<WorkerConnectionPool> held = store.getValue();
+            List<WorkerConnectionPool> fresh = new ArrayList<>(held);
+            fresh.removeAll(stale);
+            if (fresh.isEmpty()) {
+                // Stale or not, these are the only copies there are
+                fresh = held;
+            }
+            List<WorkerConnectionPool> wanted = placement.apply(store.getKey());
+            if (fresh.containsAll(wanted) && wanted.containsAll(held)) {
+                continue;
+            }
+            WorkerConnectionPool primary = primaryOf.apply(store.getKey());
+            WorkerConnectionPool source = fresh.contains(primary) ? primary : fresh.get(0);
+            List<WorkerConnectionPool> from = fresh;
+            moves.computeIfAbsent(List.of(source, fresh, held, wanted), key -> new Move(source, from, held, wanted))
+                    .names.add(store.getKey());
+        }
+
+        for (Move move : moves.values()) {
+            for (int from = 0; from < move.names.size(); from += BATCH_SIZE) {
+                moveBatch(move, move.names.subList(from, Math.min(move.names.size(), from + BATCH_SIZE)));
+                listener.report(progress(false));
+            }
+        }
+    }
+
+    // Stores that all move the same way
+    private static class Move {
+        final WorkerConnectionPool source;
+        // Holders with up-to-date copies, all holders, and where the stores belong
+        final List<WorkerConnectionPool> fresh, held, wanted;
+        final List<String> names = new ArrayList<>();
+
+        Move(WorkerConnectionPool source, List<WorkerConnectionPool> fresh, List<WorkerConnectionPool> held,
+             List<WorkerConnectionPool> wanted) {
+            this.source = source;
+            this.fresh = fresh;
+            this.held = held;
+            this.wanted = wanted;
+        }
+    }
+
+    // Adds the worker to the holders of each store it has
+    private void listStores(WorkerConnectionPool worker, Map<String, List<WorkerConnectionPool>> holders)
+            throws InterruptedException {
+        String cursor = null;
+        do {
+            Map<String, Object> query = new HashMap<>();
+            query.put("cursor", cursor);
+            query.put("pageSize", LIST_PAGE_SIZE);
+            query.put("productView", StoreSummary.PRODUCTS_NONE);
+            Object response = request(worker, "get_all_stores", query);
+            if (!(response instanceof Map<?, ?> page)) {
+                error("Could not list the stores on " + worker.getAddress() + ": " + response);
+                failed++;
+                return;
+            }
+            @SuppressWarnings("unchecked")
+            List<StoreSummary> stores = (List<StoreSummary>) page.get("stores");
+            for (StoreSummary store : stores) {
+                holders.computeIfAbsent(store.getStoreName(), name -> new ArrayList<>()).add(worker);
+            }
+            cursor = (String) page.get("nextCursor");
+        } while (cursor != null);
+    }
+
+    private void moveBatch(Move move, List<String> names) throws InterruptedException {
+        WorkerConnectionPool source = move.source;
+        List<String> batch = new ArrayList<>(names);
+        Object exported = request(source, "export_stores", batch);
+        if (!(exported instanceof Map<?, ?> copies)) {
+            failed += batch.size();
+            error("Could not export " + batch.size() + " stores from " + source.getAddress() + ": " + exported);
+            return;
+        }
+        List<?> stores = (List<?>) copies.get("stores");
+
+        for (WorkerConnectionPool target : move.wanted) {
+            if (move.fresh.contains(target)) {
+                continue;
+            }
+            Object synced = request(target, "sync_stores", copies);
+            if (!(synced instanceof Map<?, ?>)) {
+                failed += batch.size();
+                error("Could not copy " + batch.size() + " stores to " + target.getAddress() + ": " + synced);
+                request(source, "thaw_stores", batch);
+                return;
+            }
+        }
+
+        // From here requests for these stores go to their new workers
+        if (relocated != null) {
+            Map<String, List<WorkerConnectionPool>> moves = new HashMap<>();
+            for (Object store : stores) {
+                moves.put(((Store) store).getStoreName(), move.wanted);
+            }
+            relocated.accept(moves);
+        }
+        moved += stores.size();
+
+        for (WorkerConnectionPool holder : move.held) {
+            if (move.wanted.contains(holder)) {
+                continue;
+            }
+            // Only frozen stores are dropped, so other holders freeze theirs first
+            Object dropped = holder == source || request(holder, "export_stores", batch) instanceof Map<?, ?>
+                    ? request(holder, "drop_stores", batch) : "not frozen";
+            if (!(dropped instanceof Map<?, ?>)) {
+                // Harmless apart from the space: the old copies are no longer routed to
+                error("Could not drop moved stores from " + holder.getAddress() + ": " + dropped);
+            }
+        }
+        if (move.wanted.contains(source)) {
+            request(source, "thaw_stores", batch);
+        }
+    }
+
+    private Object request(WorkerConnectionPool worker, String command, Object payload) throws InterruptedException {
+        try {
+            return worker.send(command, payload, timeoutMs);
+        } catch (IOException e) {
+            return "Error: " + e.getMessage();
+        }
+    }
+
+    private void error(String message) {
+        System.err.println("Rebalance: " + message);
+        if (errors.size() < MAX_ERRORS) {
+            errors.add(message);
+        }
+    }
+
+    /** Whether every store that had to move did. */
+    boolean succeeded() {
+        return failed == 0;
+    }
+
+    Map<String, Object> progress(boolean complete) {
+        Map<String, Object> progress = new HashMap<>();
+        progress.put("complete", complete);
+        progress.put("moved", moved);
+        progress.put("failed", failed);
+        progress.put("elapsedMs", System.currentTimeMillis() - started);
+        if (complete) {
+            progress.put("errors", new ArrayList<>(errors));
+        }
+        return progress;
+    }
+}
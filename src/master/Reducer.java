@@ -1,20 +1,29 @@
 package master;
 
-import common.Store;
 import common.ConfigLoader;
+import common.MessageChannel;
+import common.ServerExecutor;
 
 import java.io.*;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class Reducer {
 
     private static final int REDUCER_PORT = ConfigLoader.getInt("REDUCER_PORT", 7000); // Port to listen for worker requests
     private static final int MASTER_PORT = ConfigLoader.getInt("MASTER_REDUCER_PORT", 5002);  // Port to send results to the master
-    private static final Map<UUID, List<Map<String, Object>>> requestBuckets = new HashMap<>();
-    private static final Object lock = new Object();
+    // A search is sent to Master with whatever has arrived once this much time has passed
+    private static final int REDUCER_DEADLINE_MS = ConfigLoader.getInt("REDUCER_DEADLINE_MS", 5000);
+    // Finished searches are remembered this long so late worker results are dropped, not re-reduced
+    private static final int REDUCER_RETAIN_MS = ConfigLoader.getInt("REDUCER_RETAIN_MS", 30000);
+    private static final Map<UUID, SearchAggregation> aggregations = new ConcurrentHashMap<>();
     private static int EXPECTED_WORKERS;
 
     public static void main(String[] args) {
@@ -24,15 +33,24 @@ public class Reducer {
             EXPECTED_WORKERS = workerPorts.size();
             System.out.println("Reducer starting with EXPECTED_WORKERS = " + EXPECTED_WORKERS);
 
-            // Step 2: Start the Reducer server to listen for connections
-            try (ServerSocket serverSocket = new ServerSocket(REDUCER_PORT)) {
+            // Step 2: Flush searches that missed a worker and forget old ones
+            ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "reducer-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long sweepMs = Math.max(100, REDUCER_DEADLINE_MS / 4);
+            sweeper.scheduleWithFixedDelay(Reducer::sweep, sweepMs, sweepMs, TimeUnit.MILLISECONDS);
+
+            // Step 3: Start the Reducer server to listen for connections
+            ExecutorService executor = ServerExecutor.create("REDUCER");
+            try (ServerSocket serverSocket = new ServerSocket(REDUCER_PORT, ServerExecutor.backlog("REDUCER"))) {
                 System.out.println("Reducer ready on port " + REDUCER_PORT + "...");
 
-                // Step 3: Listen for incoming connections from workers
+                // Step 4: Listen for incoming connections from workers
                 while (true) {
                     Socket socket = serverSocket.accept();
-                    Thread handlerThread = new Thread(() -> handleWorkerRequest(socket, workerPorts));
-                    handlerThread.start();
+                    ServerExecutor.dispatch(executor, socket, () -> handleWorkerRequest(socket));
                 }
             }
         } catch (IOException e) {
@@ -48,7 +66,7 @@ public class Reducer {
             while ((line = reader.readLine()) != null) {
                 if (line.startsWith("WORKER=")) {
                     String[] parts = line.substring(7).split(",");
-                    if (parts.length == 2) {
+                    if (parts.length >= 2) {
                         workerPorts.add(Integer.parseInt(parts[1].trim()));
                     }
                 }
@@ -59,60 +77,18 @@ public class Reducer {
     }
 
     // Handle each incoming worker request
-    private static void handleWorkerRequest(Socket socket, List<Integer> workerPorts) {
-        try (ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
+    private static void handleWorkerRequest(Socket socket) {
+        try (MessageChannel channel = MessageChannel.accept(socket)) {
             @SuppressWarnings("unchecked")
-            Map<String, Object> requestData = (Map<String, Object>) in.readObject();
+            Map<String, Object> requestData = (Map<String, Object>) channel.readObject();
             UUID requestId = (UUID) requestData.get("requestId");
+            // Master says how many workers it asked; older workers don't pass it on
+            Integer expected = (Integer) requestData.get("expectedWorkers");
+            int expectedWorkers = expected != null ? expected : EXPECTED_WORKERS;
 
-            synchronized (lock) {
-                requestBuckets.putIfAbsent(requestId, new ArrayList<>());
-                requestBuckets.get(requestId).add(requestData);
-
-                int currentCount = requestBuckets.get(requestId).size();
-                System.out.println("Reducer received " + currentCount + " responses for UUID: " + requestId);
-                System.out.println("Checking if currentCount " + currentCount + " == EXPECTED_WORKERS " + EXPECTED_WORKERS);
-
-                if (currentCount == EXPECTED_WORKERS) {
-                    // Process and send to master
-                    List<Map<String, Object>> allWorkerData = requestBuckets.remove(requestId);
-                    List<Store> finalResult = new ArrayList<>();
-
-                    for (Map<String, Object> data : allWorkerData) {
-                        @SuppressWarnings("unchecked")
-                        List<Store> stores = (List<Store>) data.get("stores");
-                        @SuppressWarnings("unchecked")
-                        List<String> categories = (List<String>) data.get("categories");
-                        String price = (String) data.get("price");
-                        int stars = (int) data.get("stars");
-
-                        for (Store store : stores) {
-                            if (categories.contains(store.getFoodCategory())
-                                    && store.getPriceCategory().equals(price)
-                                    && store.getStars() >= stars) {
-                                finalResult.add(store);
-                            }
-                        }
-                    }
-                    System.out.println("Final results: " + finalResult);
-
-                    // Send final result to master
-                    try (
-                            Socket masterSocket = new Socket(InetAddress.getLocalHost().getHostAddress(), MASTER_PORT);
-                            ObjectOutputStream masterOut = new ObjectOutputStream(masterSocket.getOutputStream())
-                    ) {
-                        // Create a response map containing both requestId and stores
-                        Map<String, Object> responseMap = new HashMap<>();
-                        responseMap.put("requestId", requestId);
-                        responseMap.put("stores", finalResult);
-
-                        masterOut.writeObject(responseMap);
-                        masterOut.flush();
-                        System.out.println("Reducer sent reduced result to master for UUID: " + requestId);
-                    } catch (IOException e) {
-                        System.err.println("Reducer failed to send to master: " + e.getMessage());
-                    }
-                }
+            SearchAggregation aggregation = aggregations.computeIfAbsent(requestId, id -> new SearchAggregation(id, expectedWorkers));
+            if (aggregation.merge(requestData)) {
+                sendToMaster(aggregation);
             }
         } catch (IOException | ClassNotFoundException e) {
             System.err.println("Error while processing worker request: " + e.getMessage());
@@ -123,4 +99,40 @@ public class Reducer {
             } catch (IOException ignored) {}
         }
     }
+
+    // Send overdue searches with what they have, and evict ones finished long ago
+    private static void sweep() {
+        long now = System.currentTimeMillis();
+        for (SearchAggregation aggregation : aggregations.values()) {
+            long age = now - aggregation.createdAt;
+            if (age >= REDUCER_DEADLINE_MS && aggregation.finish()) {
+                System.out.println("Reducer deadline passed for UUID: " + aggregation.requestId + ", sending partial result");
+                sendToMaster(aggregation);
+            }
+            if (age >= Math.max(REDUCER_RETAIN_MS, REDUCER_DEADLINE_MS)) {
+                aggregations.remove(aggregation.requestId, aggregation);
+            }
+        }
+    }
+
+    // Called once per search by whichever thread finished it, never under a lock
+    private static void sendToMaster(SearchAggregation aggregation) {
+        try (
+                Socket masterSocket = new Socket(InetAddress.getLocalHost().getHostAddress(), MASTER_PORT);
+                MessageChannel masterOut = MessageChannel.connect(masterSocket)
+        ) {
+            // Create a response map containing both requestId and stores
+            Map<String, Object> responseMap = new HashMap<>();
+            responseMap.put("requestId", aggregation.requestId);
+            responseMap.put("stores", aggregation.result());
+            responseMap.put("complete", aggregation.isComplete());
+
+            masterOut.writeObject(responseMap);
+            masterOut.flush();
+            System.out.println("Reducer sent reduced result to master for UUID: " + aggregation.requestId
+                    + " (" + aggregation.received() + " of " + aggregation.expectedWorkers + " workers)");
+        } catch (IOException e) {
+            System.err.println("Reducer failed to send to master: " + e.getMessage());
+        }
+    }
 }
@@ -0,0 +1,163 @@
+package master;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Which copies of a store may serve, and how requests are spread over them.
+ *
+ * With REPLICATION_FACTOR=n every store is kept on the first n workers found
+ * walking the hash ring from its name. The first live one is the store's
+ * primary and takes its changes; the primary hands back the change records it
+ * made and the Master streams them to the other copies (the worker's
+ * apply_changes), so replicas may trail the primary by a moment. Reads of one
+ * store take turns over its live copies, and reads over every store go to a
+ * rotating subset of workers that still holds a copy of each.
+ *
+ * A worker that fails a request is marked down: the next copy becomes primary
+ * for its stores and it gets no more reads or changes. Before it serves again
+ * the Master copies its stores back from their primaries while it is syncing.
+ * With REPLICATION_FACTOR=1 (the default) there is one copy and nothing is ever
+ * marked down.
+ */
+class Replication {
+    enum Health { LIVE, SYNCING, DOWN }
+
+    private final int factor;
+    private final long timeoutMs;
+    // Workers not listed are live
+    private final Map<WorkerConnectionPool, Health> health = new ConcurrentHashMap<>();
+    private final AtomicInteger rotation = new AtomicInteger();
+
+    Replication(int factor, long timeoutMs) {
+        this.factor = Math.max(1, factor);
+        this.timeoutMs = timeoutMs;
+    }
+
+    /** How many workers hold each store. */
+    int factor() {
+        return factor;
+    }
+
+    Health health(WorkerConnectionPool worker) {
+        return health.getOrDefault(worker, Health.LIVE);
+    }
+
+    /** Takes the worker out of service; returns false if there are no replicas to fail over to. */
+    boolean markDown(WorkerConnectionPool worker, String reason) {
+        if (factor <= 1) {
+            return false;
+        }
+        if (health.put(worker, Health.DOWN) != Health.DOWN) {
+            System.err.println("Worker " + worker.getAddress() + " marked down: " + reason);
+        }
+        return true;
+    }
+
+    // Takes changes again but serves no reads until its stores are synced
+    void markSyncing(WorkerConnectionPool worker) {
+        health.put(worker, Health.SYNCING);
+    }
+
+    // Back in service, unless it failed again while it was being synced
+    boolean markLive(WorkerConnectionPool worker) {
+        return health.replace(worker, Health.SYNCING, Health.LIVE);
+    }
+
+    void forget(WorkerConnectionPool worker) {
+        health.remove(worker);
+    }
+
+    /** The copy that takes changes: the first live one, or the first if none is. */
+    WorkerConnectionPool primary(List<WorkerConnectionPool> copies) {
+        if (copies.isEmpty()) {
+            throw new IllegalStateException("No workers on the hash ring");
+        }
+        for (WorkerConnectionPool copy : copies) {
+            if (health(copy) == Health.LIVE) {
+                return copy;
+            }
+        }
+        return copies.get(0);
+    }
+
+    /** A live copy to read from, taking turns between them. */
+    WorkerConnectionPool reader(List<WorkerConnectionPool> copies) {
+        List<WorkerConnectionPool> live = new ArrayList<>(copies.size());
+        for (WorkerConnectionPool copy : copies) {
+            if (health(copy) == Health.LIVE) {
+                live.add(copy);
+            }
+        }
+        if (live.isEmpty()) {
+            return primary(copies);
+        }
+        return live.get(Math.floorMod(rotation.getAndIncrement(), live.size()));
+    }
+
+    /**
+     * Sends a request to every copy but the primary without waiting. A copy that
+     * does not take it has missed a change, so it is marked down until synced.
+     */
+    void forward(List<WorkerConnectionPool> copies, WorkerConnectionPool primary, String command, Object payload) {
+        for (WorkerConnectionPool copy : copies) {
+            if (copy == primary || health(copy) == Health.DOWN) {
+                continue;
+            }
+            copy.sendAsync(command, payload).orTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+                    .whenComplete((response, error) -> {
+                        if (error != null) {
+                            markDown(copy, "missed '" + command + "': " + error.getMessage());
+                        } else if (response instanceof String text && text.startsWith("Error")) {
+                            markDown(copy, "refused '" + command + "': " + text);
+                        }
+                    });
+        }
+    }
+
+    /**
+     * The workers to ask for a read over every store. Any n - factor + 1 of the n
+     * ring members hold a copy of every store, so with replicas a rotating subset
+     * of that size spreads the load. With everyone set (stores are being moved),
+     * every live worker is asked. Callers drop the duplicates.
+     */
+    WorkerConnectionPool[] readers(WorkerConnectionPool[] workers, HashRing<WorkerConnectionPool> ring, boolean everyone) {
+        if (factor <= 1) {
+            return workers;
+        }
+        List<WorkerConnectionPool> live = new ArrayList<>(workers.length);
+        for (WorkerConnectionPool worker : workers) {
+            if (health(worker) == Health.LIVE && (everyone || ring.contains(worker))) {
+                live.add(worker);
+            }
+        }
+        int needed = ring.size() - Math.min(factor, ring.size()) + 1;
+        if (live.isEmpty()) {
+            return workers;
+        }
+        if (everyone || live.size() <= needed) {
+            return live.toArray(new WorkerConnectionPool[0]);
+        }
+        int start = Math.floorMod(rotation.getAndIncrement(), live.size());
+        WorkerConnectionPool[] chosen = new WorkerConnectionPool[needed];
+        for (int i = 0; i < needed; i++) {
+            chosen[i] = live.get((start + i) % live.size());
+        }
+        return chosen;
+    }
+
+    /** The workers not marked down. */
+    WorkerConnectionPool[] reachable(WorkerConnectionPool[] workers) {
+        List<WorkerConnectionPool> reachable = new ArrayList<>(workers.length);
+        for (WorkerConnectionPool worker : workers) {
+            if (health(worker) != Health.DOWN) {
+                reachable.add(worker);
+            }
+        }
+        return reachable.toArray(new WorkerConnectionPool[0]);
+    }
+}
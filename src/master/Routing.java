@@ -0,0 +1,47 @@
+package master;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where requests about a store go: its owners on the hash ring, unless an
+ * unfinished rebalance has already moved it elsewhere. Immutable, so the Master
+ * switches rings and forgets relocations in one write and no request sees a
+ * ring together with relocations meant for another.
+ */
+final class Routing {
+    private final HashRing<WorkerConnectionPool> ring;
+    // Stores moved by a rebalance that has not switched rings yet, and the workers holding them now
+    private final Map<String, List<WorkerConnectionPool>> relocated;
+
+    Routing(HashRing<WorkerConnectionPool> ring) {
+        this(ring, Map.of());
+    }
+
+    private Routing(HashRing<WorkerConnectionPool> ring, Map<String, List<WorkerConnectionPool>> relocated) {
+        this.ring = ring;
+        this.relocated = relocated;
+    }
+
+    HashRing<WorkerConnectionPool> ring() {
+        return ring;
+    }
+
+    /** The workers holding the store, primary first. */
+    List<WorkerConnectionPool> replicasOf(String storeName, int factor) {
+        List<WorkerConnectionPool> moved = relocated.get(storeName);
+        return moved != null ? moved : ring.ownersOf(storeName, factor);
+    }
+
+    boolean hasRelocations() {
+        return !relocated.isEmpty();
+    }
+
+    /** The same ring with these stores routed to where they were just moved. */
+    Routing withRelocated(Map<String, List<WorkerConnectionPool>> moved) {
+        Map<String, List<WorkerConnectionPool>> combined = new HashMap<>(relocated);
+        combined.putAll(moved);
+        return new Routing(ring, Map.copyOf(combined));
+    }
+}
@@ -0,0 +1,119 @@
+package master;
+
+import common.StoreInfo;
+import common.StoreRanking;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * The stores gathered so far for one search, used by the Reducer and, when
+ * searches are reduced in the Master, by the Master itself. Each search has its
+ * own lock, so results for different searches are merged in parallel. Worker
+ * results are filtered and folded in as they arrive instead of being buffered
+ * whole. For top-K searches each worker's list is already sorted and cut to the
+ * limit, and the lists are k-way merged once the search is finished. A store
+ * reported by more than one replica is kept once.
+ */
+class SearchAggregation {
+    final UUID requestId;
+    final int expectedWorkers;
+    final long createdAt = System.currentTimeMillis();
+    private final List<List<StoreInfo>> partials = new ArrayList<>();
+    private Comparator<StoreInfo> order;
+    private int limit;
+    private int received;
+    private int missing;
+    private boolean finished;
+
+    SearchAggregation(UUID requestId, int expectedWorkers) {
+        this.requestId = requestId;
+        this.expectedWorkers = expectedWorkers;
+    }
+
+    // Adds one worker's result; returns true if that completed the search
+    synchronized boolean merge(Map<String, Object> data) {
+        if (finished) {
+            System.out.println("Dropping late search result for UUID: " + requestId);
+            return false;
+        }
+
+        @SuppressWarnings("unchecked")
+        List<StoreInfo> workerStores = (List<StoreInfo>) data.get("stores");
+        @SuppressWarnings("unchecked")
+        List<String> categories = (List<String>) data.get("categories");
+        String price = (String) data.get("price");
+        int stars = (int) data.get("stars");
+        if (received == 0) {
+            Integer workerLimit = (Integer) data.get("limit");
+            Double latitude = (Double) data.get("latitude");
+            Double longitude = (Double) data.get("longitude");
+            limit = workerLimit != null ? workerLimit : 0;
+            order = StoreRanking.comparator((String) data.get("sortBy"),
+                    latitude != null ? latitude : 0, longitude != null ? longitude : 0);
+        }
+
+        // Filtering keeps each worker's order, so the partial stays sorted
+        List<StoreInfo> partial = new ArrayList<>();
+        for (StoreInfo store : workerStores) {
+            if (categories.contains(store.getFoodCategory())
+                    && store.getPriceCategory().equals(price)
+                    && store.getStars() >= stars) {
+                partial.add(store);
+            }
+        }
+        partials.add(partial);
+        received++;
+        System.out.println("Received " + received + " of " + expectedWorkers + " search responses for UUID: " + requestId);
+        return received + missing >= expectedWorkers && finish();
+    }
+
+    // Records a worker that will not report; returns true if the search is now finished
+    synchronized boolean skip() {
+        missing++;
+        return received + missing >= expectedWorkers && finish();
+    }
+
+    synchronized int received() {
+        return received;
+    }
+
+    // The combined stores; call once the search is finished
+    synchronized List<StoreInfo> result() {
+        if (order != null) {
+            return StoreRanking.mergeDistinct(partials, order, limit);
+        }
+        List<StoreInfo> stores = new ArrayList<>();
+        Set<String> taken = new HashSet<>();
+        for (List<StoreInfo> partial : partials) {
+            for (StoreInfo store : partial) {
+                if (taken.add(store.getStoreName())) {
+                    stores.add(store);
+                }
+            }
+        }
+        if (limit > 0 && stores.size() > limit) {
+            return new ArrayList<>(stores.subList(0, limit));
+        }
+        return stores;
+    }
+
+    // Whether every expected worker reported
+    synchronized boolean isComplete() {
+        return received >= expectedWorkers;
+    }
+
+    // Marks the search finished; returns true only for the first caller
+    synchronized boolean finish() {
+        if (finished) {
+            return false;
+        }
+        finished = true;
+        return true;
+    }
+}
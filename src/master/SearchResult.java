@@ -1,128 +1,162 @@
 package master;
 
-import common.Product;
-import common.Store;
+import common.MessageChannel;
+import common.ProductSummary;
+import common.StoreSummary;
 
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * One client's pending search. The reducer's answer completes {@link #future()},
+ * and {@link #deliverWhenDone} writes the outcome to the client from a callback,
+ * so no thread waits on a search while it runs.
+ */
 public class SearchResult {
-    protected List<Store> results;
-    protected boolean isComplete;
-    private final Object lock;
-    private final ObjectOutputStream clientOut;
+    private final CompletableFuture<List<StoreSummary>> future = new CompletableFuture<>();
+    // Set when the reducer gave up waiting on some worker
+    private volatile boolean partial;
+    private final MessageChannel clientOut;
     private final String clientAddress;
     private final Map<String, Object> searchCriteria;
-    private final double clientLatitude;
-    private final double clientLongitude;
 
-    public SearchResult(ObjectOutputStream clientOut, String clientAddress, Map<String, Object> searchCriteria, double latitude, double longitude) {
-        this.results = null;
-        this.isComplete = false;
-        this.lock = new Object();
+    public SearchResult(MessageChannel clientOut, String clientAddress, Map<String, Object> searchCriteria) {
         this.clientOut = clientOut;
         this.clientAddress = clientAddress;
         this.searchCriteria = searchCriteria;
-        this.clientLatitude = latitude;
-        this.clientLongitude = longitude;
     }
 
-    public void storeResults(List<Store> results) {
-        synchronized (lock) {
-            System.out.println("Storing results for client " + clientAddress + " with criteria: " + searchCriteria);
-            this.results = results;
-            this.isComplete = true;
-            lock.notifyAll();
-        }
+    public CompletableFuture<List<StoreSummary>> future() {
+        return future;
     }
 
-    public void setResults(List<Store> results) {
-        synchronized (lock) {
-            System.out.println("Setting results for client " + clientAddress + " with criteria: " + searchCriteria);
-            this.results = results;
-            this.isComplete = true;
+    // Called with the reducer's answer; returns false if the search already finished
+    public boolean complete(List<StoreSummary> results, boolean partial) {
+        System.out.println("Storing results for client " + clientAddress + " with criteria: " + searchCriteria);
+        this.partial = partial;
+        return future.complete(results);
+    }
 
-            // Send results directly to the client
-            try {
-                // Transform results into detailed maps
-                List<Map<String, Object>> detailedStores = new ArrayList<>();
-                for (Store store : results) {
-                    Map<String, Object> storeDetails = new HashMap<>();
-                    storeDetails.put("Store Name", store.getStoreName());
-                    storeDetails.put("Food Category", store.getFoodCategory());
-                    storeDetails.put("Price Category", store.getPriceCategory());
-                    storeDetails.put("Rating", store.getStars() + " stars");
-                    storeDetails.put("Location", String.format("(%.2f, %.2f)", store.getLatitude(), store.getLongitude()));
-
-                    List<Map<String, Object>> productDetails = new ArrayList<>();
-                    for (Product product : store.getProducts()) {
-                        if (product.isActive()) {
-                            Map<String, Object> productInfo = new HashMap<>();
-                            productInfo.put("Name", product.getProductName());
-                            productInfo.put("Type", product.getProductType());
-                            productInfo.put("Price", String.format("$%.2f", product.getPrice()));
-                            productInfo.put("Available", product.getAvailableAmount() + " units");
-                            productDetails.add(productInfo);
-                        }
-                    }
-                    storeDetails.put("Products", productDetails);
-                    detailedStores.add(storeDetails);
-                }
+    public boolean isPartial() {
+        return partial;
+    }
 
-                // Create a formatted response
-                StringBuilder formattedResponse = new StringBuilder();
-                formattedResponse.append("\nSearch Results:\n");
-                formattedResponse.append("==============\n\n");
-
-                for (Map<String, Object> store : detailedStores) {
-                    formattedResponse.append("Store: ").append(store.get("Store Name")).append("\n");
-                    formattedResponse.append("Category: ").append(store.get("Food Category")).append("\n");
-                    formattedResponse.append("Price Range: ").append(store.get("Price Category")).append("\n");
-                    formattedResponse.append("Rating: ").append(store.get("Rating")).append("\n");
-                    formattedResponse.append("Location: ").append(store.get("Location")).append("\n");
-
-                    @SuppressWarnings("unchecked")
-                    List<Map<String, Object>> products = (List<Map<String, Object>>) store.get("Products");
-                    if (!products.isEmpty()) {
-                        formattedResponse.append("\nAvailable Products:\n");
-                        for (Map<String, Object> product : products) {
-                            formattedResponse.append("  - ").append(product.get("Name"))
-                                    .append(" (").append(product.get("Type")).append(")")
-                                    .append(": ").append(product.get("Price"))
-                                    .append(" - ").append(product.get("Available"))
-                                    .append("\n");
-                        }
-                    }
-                    formattedResponse.append("\n----------------------------------------\n\n");
-                }
+    /**
+     * Once results completes, or timeoutMs passes, sends view of the results or
+     * an error to the client on the given executor and then calls onDone with the
+     * results themselves (null on failure). Returns immediately.
+     */
+    public void deliverWhenDone(CompletableFuture<List<StoreSummary>> results, long timeoutMs,
+                                Function<List<StoreSummary>, List<StoreSummary>> view, Executor executor,
+                                BiConsumer<List<StoreSummary>, Throwable> onDone) {
+        // If the executor is overloaded the completing thread delivers, so no client is left waiting
+        Executor delivery = task -> {
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.run();
+            }
+        };
+        // A copy, so the timeout never completes a future other searches share
+        results.copy().orTimeout(timeoutMs, TimeUnit.MILLISECONDS).whenCompleteAsync((stores, error) -> {
+            if (error == null && stores != null) {
+                deliver(view.apply(stores));
+            } else if (error instanceof TimeoutException || error != null && error.getCause() instanceof TimeoutException) {
+                System.out.println("Search timed out after " + timeoutMs + " ms for client " + clientAddress);
+                deliverMessage("Search timed out after " + timeoutMs + " ms");
+            } else {
+                System.err.println("Search failed for client " + clientAddress + (error != null ? ": " + error.getMessage() : ""));
+                deliverMessage("Search did not complete, please retry");
+            }
+            onDone.accept(error == null ? stores : null, error);
+        }, delivery);
+    }
 
-                if (detailedStores.isEmpty()) {
-                    formattedResponse.append("No stores found matching your criteria.\n");
-                }
+    // Formats the stores and sends them to the client
+    public void deliver(List<StoreSummary> results) {
+        System.out.println("Setting results for client " + clientAddress + " with criteria: " + searchCriteria);
+        deliverMessage(format(results));
+    }
 
-                clientOut.writeObject(formattedResponse.toString());
+    private void deliverMessage(String message) {
+        // Delivery runs on callback threads; one message at a time per client
+        synchronized (clientOut) {
+            try {
+                clientOut.writeObject(message);
                 clientOut.flush();
             } catch (IOException e) {
                 System.err.println("Error sending results to client " + clientAddress + ": " + e.getMessage());
             }
-
-            lock.notifyAll();
         }
     }
 
-    public List<Store> getResults(long timeout) throws InterruptedException {
-        synchronized (lock) {
-            System.out.println("Waiting for results with timeout: " + timeout + " for client " + clientAddress);
-            if (!isComplete) {
-                lock.wait(timeout);
+    private static String format(List<StoreSummary> results) {
+        // Transform results into detailed maps
+        List<Map<String, Object>> detailedStores = new ArrayList<>();
+        for (StoreSummary store : results) {
+            Map<String, Object> storeDetails = new HashMap<>();
+            storeDetails.put("Store Name", store.getStoreName());
+            storeDetails.put("Food Category", store.getFoodCategory());
+            storeDetails.put("Price Category", store.getPriceCategory());
+            storeDetails.put("Rating", store.getStars() + " stars");
+            storeDetails.put("Location", String.format("(%.2f, %.2f)", store.getLatitude(), store.getLongitude()));
+
+            List<Map<String, Object>> productDetails = new ArrayList<>();
+            for (ProductSummary product : store.getProducts()) {
+                if (product.isActive()) {
+                    Map<String, Object> productInfo = new HashMap<>();
+                    productInfo.put("Name", product.getProductName());
+                    productInfo.put("Type", product.getProductType());
+                    productInfo.put("Price", String.format("$%.2f", product.getPrice()));
+                    productInfo.put("Available", product.getAvailableAmount() + " units");
+                    productDetails.add(productInfo);
+                }
+            }
+            storeDetails.put("Products", productDetails);
+            detailedStores.add(storeDetails);
+        }
+
+        // Create a formatted response
+        StringBuilder formattedResponse = new StringBuilder();
+        formattedResponse.append("\nSearch Results:\n");
+        formattedResponse.append("==============\n\n");
+
+        for (Map<String, Object> store : detailedStores) {
+            formattedResponse.append("Store: ").append(store.get("Store Name")).append("\n");
+            formattedResponse.append("Category: ").append(store.get("Food Category")).append("\n");
+            formattedResponse.append("Price Range: ").append(store.get("Price Category")).append("\n");
+            formattedResponse.append("Rating: ").append(store.get("Rating")).append("\n");
+            formattedResponse.append("Location: ").append(store.get("Location")).append("\n");
+
+            @SuppressWarnings("unchecked")
+            List<Map<String, Object>> products = (List<Map<String, Object>>) store.get("Products");
+            if (!products.isEmpty()) {
+                formattedResponse.append("\nAvailable Products:\n");
+                for (Map<String, Object> product : products) {
+                    formattedResponse.append("  - ").append(product.get("Name"))
+                            .append(" (").append(product.get("Type")).append(")")
+                            .append(": ").append(product.get("Price"))
+                            .append(" - ").append(product.get("Available"))
+                            .append("\n");
+                }
             }
-            System.out.println("Got results or timed out, isComplete: " + isComplete + " for client " + clientAddress);
-            return results;
+            formattedResponse.append("\n----------------------------------------\n\n");
         }
+
+        if (detailedStores.isEmpty()) {
+            formattedResponse.append("No stores found matching your criteria.\n");
+        }
+
+        return formattedResponse.toString();
     }
 }
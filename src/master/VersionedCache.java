@@ -0,0 +1,78 @@
+package master;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Small read-through cache for worker responses.
+ *
+ * An entry is served only while it is younger than the TTL and was filled at
+ * the version the caller still sees (compared with equals, so a list of
+ * per-worker versions works too), so a worker reporting a newer version
+ * invalidates everything cached from it. The least recently used entry is
+ * evicted once the cache is full. Hits and misses are counted.
+ */
+class VersionedCache<K, V> {
+    private final int maxEntries;
+    private final long ttlMs;
+    private final Map<K, Entry<V>> entries;
+    private long hits;
+    private long misses;
+
+    VersionedCache(int maxEntries, long ttlMs) {
+        this.maxEntries = maxEntries;
+        this.ttlMs = ttlMs;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                return size() > VersionedCache.this.maxEntries;
+            }
+        };
+    }
+
+    boolean isEnabled() {
+        return ttlMs > 0 && maxEntries > 0;
+    }
+
+    // The cached value, or null if it is missing, expired or from an older version
+    synchronized V get(K key, Object version) {
+        Entry<V> entry = entries.get(key);
+        if (entry != null && (!Objects.equals(entry.version, version) || System.currentTimeMillis() >= entry.expiresAt)) {
+            entries.remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    synchronized void put(K key, Object version, V value) {
+        if (isEnabled()) {
+            entries.put(key, new Entry<>(value, version, System.currentTimeMillis() + ttlMs));
+        }
+    }
+
+    synchronized long hits() {
+        return hits;
+    }
+
+    synchronized long misses() {
+        return misses;
+    }
+
+    private static class Entry<V> {
+        final V value;
+        final Object version;
+        final long expiresAt;
+
+        Entry(V value, Object version, long expiresAt) {
+            this.value = value;
+            this.version = version;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package master;
+
+import common.ConfigLoader;
+import common.MessageChannel;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a small set of long-lived connections open to one worker.
+ * Every request is tagged with a request id, so several requests can be
+ * in flight on the same connection and responses are matched back by id.
+ * Every response also carries the worker's catalog and stock versions, and the
+ * newest ones seen are kept so cached worker data can be checked without asking it.
+ */
+public class WorkerConnectionPool {
+    // How long to wait for a connection to a worker, including its handshake
+    private static final int CONNECT_TIMEOUT_MS = ConfigLoader.getInt("WORKER_TIMEOUT_MS", 10000);
+
+    private final String host;
+    private final int port;
+    private final WorkerChannel[] channels;
+    private final AtomicInteger nextChannel = new AtomicInteger();
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private final AtomicLong catalogVersion = new AtomicLong();
+    private final AtomicLong stockVersion = new AtomicLong();
+
+    public WorkerConnectionPool(String host, int port, int size) {
+        this.host = host;
+        this.port = port;
+        this.channels = new WorkerChannel[Math.max(1, size)];
+    }
+
+    public String getAddress() {
+        return host + ":" + port;
+    }
+
+    // Newest catalog version this worker has reported; 0 before any response
+    public long getCatalogVersion() {
+        return catalogVersion.get();
+    }
+
+    // Newest stock version this worker has reported; 0 before any response
+    public long getStockVersion() {
+        return stockVersion.get();
+    }
+
+    /**
+     * Sends a request and returns its response when it arrives. Fails with a
+     * ConnectException when the request never reached the worker, so it is safe
+     * to send again elsewhere; any other failure may come after the worker acted on it.
+     */
+    public CompletableFuture<Object> sendAsync(String command, Object payload) {
+        long requestId = nextRequestId.incrementAndGet();
+        try {
+            WorkerChannel channel = acquireChannel();
+            return channel.send(requestId, command, payload);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    public Object send(String command, Object payload, long timeoutMs) throws IOException, InterruptedException {
+        CompletableFuture<Object> future = sendAsync(command, payload);
+        try {
+            return future.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            throw new IOException("Worker " + getAddress() + " did not answer '" + command + "' within " + timeoutMs + " ms");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException("Worker " + getAddress() + " failed on '" + command + "': " + cause.getMessage(), cause);
+        }
+    }
+
+    public void close() {
+        synchronized (channels) {
+            for (int i = 0; i < channels.length; i++) {
+                if (channels[i] != null) {
+                    channels[i].close(new IOException("Pool closed"));
+                    channels[i] = null;
+                }
+            }
+        }
+    }
+
+    // Round-robin over the slots, (re)connecting a slot whose channel is missing or broken
+    private WorkerChannel acquireChannel() throws IOException {
+        int slot = Math.floorMod(nextChannel.getAndIncrement(), channels.length);
+        synchronized (channels) {
+            WorkerChannel channel = channels[slot];
+            if (channel != null && channel.isOpen()) {
+                return channel;
+            }
+        }
+        // Connected without holding the slots, so a worker that is slow to answer holds up no other requests
+        WorkerChannel connected = connect();
+        synchronized (channels) {
+            WorkerChannel channel = channels[slot];
+            if (channel != null && channel.isOpen()) {
+                // Another request reconnected the slot meanwhile
+                connected.close(new IOException("Connection not needed"));
+                return channel;
+            }
+            channels[slot] = connected;
+            return connected;
+        }
+    }
+
+    private WorkerChannel connect() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            // Also bounds the handshake; cleared once the channel is open
+            socket.setSoTimeout(CONNECT_TIMEOUT_MS);
+            return new WorkerChannel(socket, getAddress(), catalogVersion, stockVersion);
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            throw connectFailure(e);
+        }
+    }
+
+    private ConnectException connectFailure(IOException cause) {
+        if (cause instanceof ConnectException connectException) {
+            return connectException;
+        }
+        ConnectException failure = new ConnectException("Could not connect to worker " + getAddress() + ": " + cause.getMessage());
+        failure.initCause(cause);
+        return failure;
+    }
+
+    private static class WorkerChannel {
+        private final Socket socket;
+        private final String address;
+        private final MessageChannel channel;
+        private final AtomicLong catalogVersion;
+        private final AtomicLong stockVersion;
+        private final Map<Long, CompletableFuture<Object>> pending = new ConcurrentHashMap<>();
+        private volatile boolean open = true;
+
+        WorkerChannel(Socket socket, String address, AtomicLong catalogVersion, AtomicLong stockVersion) throws IOException {
+            this.socket = socket;
+            this.address = address;
+            this.catalogVersion = catalogVersion;
+            this.stockVersion = stockVersion;
+            this.channel = MessageChannel.connect(socket);
+            // Responses take as long as their requests do
+            socket.setSoTimeout(0);
+
+            Thread reader = new Thread(this::readLoop, "worker-channel-" + address);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        boolean isOpen() {
+            return open;
+        }
+
+        CompletableFuture<Object> send(long requestId, String command, Object payload) {
+            CompletableFuture<Object> future = new CompletableFuture<>();
+            pending.put(requestId, future);
+            future.whenComplete((response, error) -> pending.remove(requestId));
+            if (!open) {
+                // Never written, so as good as not connected
+                future.completeExceptionally(new ConnectException("Connection to worker " + address + " is closed"));
+                return future;
+            }
+            try {
+                synchronized (channel) {
+                    channel.writeObject(requestId);
+                    channel.writeObject(command);
+                    channel.writeObject(payload);
+                    channel.flush();
+                }
+            } catch (IOException e) {
+                close(e);
+            }
+            return future;
+        }
+
+        private void readLoop() {
+            try {
+                while (open) {
+                    Long requestId = (Long) channel.readObject();
+                    Long catalog = (Long) channel.readObject();
+                    Long stock = (Long) channel.readObject();
+                    Object response = channel.readObject();
+                    // Responses on different connections can arrive out of order; keep the newest
+                    catalogVersion.accumulateAndGet(catalog, Math::max);
+                    stockVersion.accumulateAndGet(stock, Math::max);
+                    CompletableFuture<Object> future = pending.remove(requestId);
+                    if (future != null) {
+                        future.complete(response);
+                    }
+                }
+            } catch (EOFException e) {
+                close(new IOException("Worker " + address + " closed the connection"));
+            } catch (Exception e) {
+                close(e instanceof IOException ioException ? ioException : new IOException(e.getMessage(), e));
+            }
+        }
+
+        void close(IOException cause) {
+            open = false;
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            for (CompletableFuture<Object> future : pending.values()) {
+                future.completeExceptionally(cause);
+            }
+            pending.clear();
+        }
+    }
+}
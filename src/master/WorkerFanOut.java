@@ -0,0 +1,89 @@
+package master;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Sends one command to every worker at once and gathers whatever comes back
+ * before the deadline. Workers that fail or are too slow are left out of the
+ * result, so callers work with partial results instead of waiting on them.
+ */
+public class WorkerFanOut {
+    private static final ExecutorService SENDERS = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "fan-out-sender");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private WorkerFanOut() {
+    }
+
+    /**
+     * @return the responses keyed by worker index, in worker order; workers that
+     *         failed or missed the deadline have no entry
+     */
+    public static Map<Integer, Object> scatter(WorkerConnectionPool[] pools, String command, Object payload, long deadlineMs)
+            throws InterruptedException {
+        List<Integer> all = new ArrayList<>(pools.length);
+        for (int i = 0; i < pools.length; i++) {
+            all.add(i);
+        }
+        return scatter(pools, all, command, payload, deadlineMs);
+    }
+
+    // Same as above, but only to the workers at the given indexes
+    public static Map<Integer, Object> scatter(WorkerConnectionPool[] pools, List<Integer> targets, String command,
+                                               Object payload, long deadlineMs) throws InterruptedException {
+        // One shared deadline, started before anything is sent: the total wait is bounded by
+        // the slowest worker, not the sum, and includes connecting to it
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMs);
+        List<CompletableFuture<Object>> futures = new ArrayList<>(targets.size());
+        for (int target : targets) {
+            futures.add(sendInBackground(pools[target], command, payload));
+        }
+
+        Map<Integer, Object> responses = new LinkedHashMap<>();
+        for (int i = 0; i < futures.size(); i++) {
+            int target = targets.get(i);
+            long remaining = Math.max(0, deadline - System.nanoTime());
+            try {
+                responses.put(target, futures.get(i).get(remaining, TimeUnit.NANOSECONDS));
+            } catch (TimeoutException e) {
+                futures.get(i).cancel(false);
+                System.err.println("Worker " + pools[target].getAddress() + " missed the " + deadlineMs + " ms deadline for '" + command + "'");
+            } catch (ExecutionException e) {
+                System.err.println("Worker not responding at " + pools[target].getAddress() + " for '" + command + "': " + e.getCause().getMessage());
+            }
+        }
+        return responses;
+    }
+
+    // Connecting or writing to a worker may block, so it happens on a sender thread; cancelling
+    // the returned future gives up on the request
+    private static CompletableFuture<Object> sendInBackground(WorkerConnectionPool pool, String command, Object payload) {
+        CompletableFuture<Object> response = new CompletableFuture<>();
+        SENDERS.execute(() -> {
+            if (response.isDone()) {
+                return;
+            }
+            CompletableFuture<Object> sent = pool.sendAsync(command, payload);
+            sent.whenComplete((value, error) -> {
+                if (error != null) {
+                    response.completeExceptionally(error);
+                } else {
+                    response.complete(value);
+                }
+            });
+            response.whenComplete((value, error) -> sent.cancel(false));
+        });
+        return response;
+    }
+}
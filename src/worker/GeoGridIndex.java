@@ -0,0 +1,114 @@
+package worker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import common.GeoUtils;
+
+/**
+ * Grid over latitude/longitude: each cell holds the stores located inside it.
+ * A radius query only visits the cells overlapping the query's bounding box and
+ * runs the exact distance check on the stores found there.
+ */
+class GeoGridIndex {
+    private final double cellDegrees;
+    private final Map<Long, Map<String, Location>> cells = new ConcurrentHashMap<>();
+
+    GeoGridIndex(double cellDegrees) {
+        this.cellDegrees = cellDegrees;
+    }
+
+    void add(String storeName, double latitude, double longitude) {
+        cells.computeIfAbsent(cellKey(latitude, longitude), key -> new ConcurrentHashMap<>())
+                .put(storeName, new Location(latitude, longitude));
+    }
+
+    void remove(String storeName, double latitude, double longitude) {
+        Map<String, Location> cell = cells.get(cellKey(latitude, longitude));
+        if (cell != null) {
+            cell.remove(storeName);
+        }
+    }
+
+    // Names of the stores within radiusKm of the given point
+    List<String> findWithin(double latitude, double longitude, double radiusKm) {
+        double latDelta = GeoUtils.latitudeDelta(radiusKm);
+        double lonDelta = GeoUtils.longitudeDelta(latitude, radiusKm);
+        int minLatCell = cellIndex(latitude - latDelta);
+        int maxLatCell = cellIndex(latitude + latDelta);
+        // Longitude cell ranges to visit: a box across the antimeridian is split in two
+        List<int[]> lonRanges = new ArrayList<>(2);
+        double west = longitude - lonDelta;
+        double east = longitude + lonDelta;
+        if (lonDelta >= 180.0) {
+            lonRanges.add(new int[] {cellIndex(-180.0), cellIndex(180.0)});
+        } else if (west < -180.0) {
+            lonRanges.add(new int[] {cellIndex(west + 360.0), cellIndex(180.0)});
+            lonRanges.add(new int[] {cellIndex(-180.0), cellIndex(east)});
+        } else if (east > 180.0) {
+            lonRanges.add(new int[] {cellIndex(west), cellIndex(180.0)});
+            lonRanges.add(new int[] {cellIndex(-180.0), cellIndex(east - 360.0)});
+        } else {
+            lonRanges.add(new int[] {cellIndex(west), cellIndex(east)});
+        }
+
+        List<String> result = new ArrayList<>();
+        long boxCells = 0;
+        for (int[] range : lonRanges) {
+            boxCells += (long) (maxLatCell - minLatCell + 1) * (range[1] - range[0] + 1);
+        }
+        if (boxCells > cells.size()) {
+            // Huge radius: walking the occupied cells is cheaper than walking the box
+            for (Map<String, Location> cell : cells.values()) {
+                collectWithin(cell, latitude, longitude, radiusKm, result);
+            }
+            return result;
+        }
+
+        for (int[] range : lonRanges) {
+            for (int latCell = minLatCell; latCell <= maxLatCell; latCell++) {
+                for (int lonCell = range[0]; lonCell <= range[1]; lonCell++) {
+                    Map<String, Location> cell = cells.get(cellKey(latCell, lonCell));
+                    if (cell != null) {
+                        collectWithin(cell, latitude, longitude, radiusKm, result);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void collectWithin(Map<String, Location> cell, double latitude, double longitude,
+                                      double radiusKm, List<String> result) {
+        for (Map.Entry<String, Location> entry : cell.entrySet()) {
+            Location location = entry.getValue();
+            if (GeoUtils.isWithinKm(latitude, longitude, location.latitude, location.longitude, radiusKm)) {
+                result.add(entry.getKey());
+            }
+        }
+    }
+
+    private int cellIndex(double degrees) {
+        return (int) Math.floor(degrees / cellDegrees);
+    }
+
+    private long cellKey(double latitude, double longitude) {
+        return cellKey(cellIndex(latitude), cellIndex(longitude));
+    }
+
+    private static long cellKey(int latCell, int lonCell) {
+        return ((long) latCell << 32) | (lonCell & 0xFFFFFFFFL);
+    }
+
+    private static class Location {
+        final double latitude;
+        final double longitude;
+
+        Location(double latitude, double longitude) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package worker;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import common.Product;
+import common.Store;
+
+/**
+ * The changes a worker makes to its stores, as small records. The journal logs
+ * them and replays them on startup, and the Master streams the ones a store's
+ * primary made to the store's replicas, which apply them with {@link #apply}.
+ *
+ * Every record carries a "seq" from the worker that made it. Replicas may get
+ * records out of order, so stock records are deltas (any order adds up to the
+ * same stock) and prices and ratings keep the newest value by seq. Records no
+ * newer than the copy a store was last synced from are already in that copy and
+ * are skipped. A record may also arrive before the one adding its store or
+ * product; it cannot be applied then, and the replica has to be synced again.
+ */
+final class StoreChanges {
+
+    private StoreChanges() {
+    }
+
+    static Map<String, Object> register(Store store) {
+        Map<String, Object> record = record("register", store.getStoreName());
+        record.put("store", store);
+        return record;
+    }
+
+    // The store replaced by a copy taken from its primary; seq is the primary's at the time
+    static Map<String, Object> sync(Store store, long seq) {
+        Map<String, Object> record = record("sync", store.getStoreName());
+        record.put("store", store);
+        record.put("seq", seq);
+        return record;
+    }
+
+    static Map<String, Object> addProduct(String storeName, Product product) {
+        // A copy, since purchases may change the product before a replica's record is sent
+        Product added = new Product(product.getProductName(), product.getProductType(), product.getProductImage(),
+                product.getAvailableAmount(), product.getPrice());
+        added.setUnitsSold(product.getUnitsSold());
+        added.setActive(product.isActive());
+        Map<String, Object> record = record("add_product", storeName);
+        record.put("product", added);
+        return record;
+    }
+
+    static Map<String, Object> price(String storeName, String productName, double price) {
+        Map<String, Object> record = record("price", storeName);
+        record.put("productName", productName);
+        record.put("price", price);
+        return record;
+    }
+
+    static Map<String, Object> deactivate(String storeName, String productName) {
+        Map<String, Object> record = record("remove", storeName);
+        record.put("productName", productName);
+        return record;
+    }
+
+    // Stock taken (negative) or added, units sold and sales made by one change
+    static Map<String, Object> stock(String storeName, String productName, int stockDelta, int unitsSoldDelta,
+                                     double salesDelta) {
+        Map<String, Object> record = record("stock", storeName);
+        record.put("productName", productName);
+        record.put("quantity", stockDelta);
+        record.put("unitsSold", unitsSoldDelta);
+        record.put("sales", salesDelta);
+        return record;
+    }
+
+    static Map<String, Object> drop(String storeName) {
+        return record("drop", storeName);
+    }
+
+    static Map<String, Object> rating(String storeName, int stars, int noOfVotes) {
+        Map<String, Object> record = record("rate", storeName);
+        record.put("stars", stars);
+        record.put("votes", noOfVotes);
+        return record;
+    }
+
+    private static Map<String, Object> record(String op, String storeName) {
+        Map<String, Object> record = new HashMap<>();
+        record.put("op", op);
+        record.put("storeName", storeName);
+        return record;
+    }
+
+    /** What became of a record given to {@link #apply}. */
+    enum Outcome {
+        APPLIED,
+        // Already in this copy, or older than what it has
+        SKIPPED,
+        // Its store or product is not here, so it could not be applied
+        MISSING
+    }
+
+    /**
+     * Applies one record. Stock records are applied even if they leave stock
+     * negative, since the primary already accepted them. Records without a seq
+     * (logged before replication) always apply.
+     */
+    static Outcome apply(StoreRegistry registry, Map<?, ?> record) {
+        String storeName = (String) record.get("storeName");
+        long seq = record.get("seq") instanceof Long value ? value : 0;
+        registry.observeSeq(seq);
+        switch ((String) record.get("op")) {
+            case "register" -> {
+                return registry.register((Store) record.get("store")) ? Outcome.APPLIED : Outcome.SKIPPED;
+            }
+            case "sync" -> {
+                registry.replace((Store) record.get("store"), seq);
+                return Outcome.APPLIED;
+            }
+            case "drop" -> {
+                return registry.remove(storeName) ? Outcome.APPLIED : Outcome.SKIPPED;
+            }
+            default -> {
+                if (seq != 0 && seq <= registry.syncedAt(storeName)) {
+                    return Outcome.SKIPPED;
+                }
+            }
+        }
+        Store store = registry.get(storeName);
+        if (store == null) {
+            return Outcome.MISSING;
+        }
+        ReentrantLock lock = registry.lockFor(storeName);
+        lock.lock();
+        try {
+            Product product = record.get("productName") instanceof String name ? store.getProduct(name) : null;
+            switch ((String) record.get("op")) {
+                case "add_product" -> {
+                    Product added = (Product) record.get("product");
+                    if (store.getProduct(added.getProductName()) != null) {
+                        return Outcome.SKIPPED;
+                    }
+                    store.addProduct(added);
+                }
+                case "price" -> {
+                    if (product == null) {
+                        return Outcome.MISSING;
+                    }
+                    if (!registry.isNewest(storeName, "price:" + product.getProductName(), seq)) {
+                        return Outcome.SKIPPED;
+                    }
+                    product.setPrice((Double) record.get("price"));
+                }
+                case "remove" -> {
+                    if (product == null) {
+                        return Outcome.MISSING;
+                    }
+                    store.deactivateProduct(product.getProductName());
+                }
+                case "stock" -> {
+                    if (product == null) {
+                        return Outcome.MISSING;
+                    }
+                    // Atomic, since a promoted replica also takes purchases without the lock
+                    product.adjustStock((Integer) record.get("quantity"), (Integer) record.get("unitsSold"));
+                    store.addToTotalSales((Double) record.get("sales"));
+                    registry.stockChanged();
+                    return Outcome.APPLIED;
+                }
+                case "rate" -> {
+                    if (!registry.isNewest(storeName, "rate", seq)) {
+                        return Outcome.SKIPPED;
+                    }
+                    store.setStars((Integer) record.get("stars"));
+                    store.setNoOfVotes((Integer) record.get("votes"));
+                }
+                default -> {
+                    System.err.println("Worker got unknown change " + record.get("op"));
+                    return Outcome.SKIPPED;
+                }
+            }
+            registry.reindex(store);
+            return Outcome.APPLIED;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package worker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import common.Product;
+import common.Store;
+
+/**
+ * Secondary indexes over the worker's stores: by food category, price category,
+ * star rating and product type. Lookups are lock-free. A store must be re-indexed
+ * (via {@link #index}) whenever an indexed field changes, while holding that
+ * store's lock, so updates to different stores run in parallel.
+ */
+class StoreIndex {
+    private static final int MAX_STARS = 5;
+
+    private final Map<String, Set<String>> byFoodCategory = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> byPriceCategory = new ConcurrentHashMap<>();
+    private final Map<Integer, Set<String>> byStars = new ConcurrentHashMap<>();
+    // product type -> names of the stores selling it
+    private final Map<String, Set<String>> byProductType = new ConcurrentHashMap<>();
+    // What each store was last indexed under, so stale entries can be removed
+    private final Map<String, IndexedKeys> indexedKeys = new ConcurrentHashMap<>();
+
+    // Add the store, or move it to its current keys if it was indexed before
+    void index(Store store) {
+        Set<String> productTypes = new HashSet<>();
+        for (Product product : store.getProducts()) {
+            productTypes.add(product.getProductType());
+        }
+        index(store.getStoreName(), store.getFoodCategory(), store.getPriceCategory(), store.getStars(), productTypes);
+    }
+
+    // Same as index(Store), from the indexed fields alone (e.g. a snapshot row not yet loaded)
+    void index(String storeName, String foodCategory, String priceCategory, int stars, Set<String> productTypes) {
+        IndexedKeys previous = indexedKeys.get(storeName);
+        IndexedKeys current = new IndexedKeys(foodCategory, priceCategory, stars, productTypes);
+
+        if (previous != null) {
+            removeFrom(byFoodCategory, previous.foodCategory, storeName);
+            removeFrom(byPriceCategory, previous.priceCategory, storeName);
+            removeFrom(byStars, previous.stars, storeName);
+            for (String type : previous.productTypes) {
+                removeFrom(byProductType, type, storeName);
+            }
+        }
+
+        addTo(byFoodCategory, current.foodCategory, storeName);
+        addTo(byPriceCategory, current.priceCategory, storeName);
+        addTo(byStars, current.stars, storeName);
+        for (String type : current.productTypes) {
+            addTo(byProductType, type, storeName);
+        }
+        indexedKeys.put(storeName, current);
+    }
+
+    // Forget the store entirely, e.g. after it moved to another worker
+    void remove(String storeName) {
+        IndexedKeys previous = indexedKeys.remove(storeName);
+        if (previous == null) {
+            return;
+        }
+        removeFrom(byFoodCategory, previous.foodCategory, storeName);
+        removeFrom(byPriceCategory, previous.priceCategory, storeName);
+        removeFrom(byStars, previous.stars, storeName);
+        for (String type : previous.productTypes) {
+            removeFrom(byProductType, type, storeName);
+        }
+    }
+
+    // Names of stores in the category and price category rated at least minStars
+    List<String> find(String foodCategory, String priceCategory, int minStars) {
+        Set<String> inCategory = byFoodCategory.getOrDefault(foodCategory, Collections.emptySet());
+        Set<String> inPriceCategory = byPriceCategory.getOrDefault(priceCategory, Collections.emptySet());
+
+        List<Set<String>> starBuckets = new ArrayList<>();
+        int starMatches = 0;
+        for (int stars = Math.max(0, minStars); stars <= MAX_STARS; stars++) {
+            Set<String> bucket = byStars.get(stars);
+            if (bucket != null) {
+                starBuckets.add(bucket);
+                starMatches += bucket.size();
+            }
+        }
+
+        // Walk whichever candidate set is smallest and probe the others
+        List<String> result = new ArrayList<>();
+        if (starMatches < inCategory.size() && starMatches < inPriceCategory.size()) {
+            for (Set<String> bucket : starBuckets) {
+                for (String storeName : bucket) {
+                    if (inCategory.contains(storeName) && inPriceCategory.contains(storeName)) {
+                        result.add(storeName);
+                    }
+                }
+            }
+            return result;
+        }
+
+        Set<String> smaller = inCategory.size() <= inPriceCategory.size() ? inCategory : inPriceCategory;
+        Set<String> larger = smaller == inCategory ? inPriceCategory : inCategory;
+        for (String storeName : smaller) {
+            IndexedKeys keys = indexedKeys.get(storeName);
+            if (keys != null && keys.stars >= minStars && larger.contains(storeName)) {
+                result.add(storeName);
+            }
+        }
+        return result;
+    }
+
+    Set<String> storesInCategory(String foodCategory) {
+        return byFoodCategory.getOrDefault(foodCategory, Collections.emptySet());
+    }
+
+    Set<String> storesWithProductType(String productType) {
+        return byProductType.getOrDefault(productType, Collections.emptySet());
+    }
+
+    private static <K> void addTo(Map<K, Set<String>> index, K key, String storeName) {
+        index.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(storeName);
+    }
+
+    private static <K> void removeFrom(Map<K, Set<String>> index, K key, String storeName) {
+        Set<String> stores = index.get(key);
+        if (stores != null) {
+            stores.remove(storeName);
+        }
+    }
+
+    private static class IndexedKeys {
+        final String foodCategory;
+        final String priceCategory;
+        final int stars;
+        final Set<String> productTypes;
+
+        IndexedKeys(String foodCategory, String priceCategory, int stars, Set<String> productTypes) {
+            this.foodCategory = foodCategory;
+            this.priceCategory = priceCategory;
+            this.stars = Math.max(0, Math.min(MAX_STARS, stars));
+            this.productTypes = productTypes;
+        }
+    }
+}
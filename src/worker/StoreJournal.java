@@ -0,0 +1,436 @@
+package worker;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+import common.BinaryCodec;
+import common.ConfigLoader;
+import common.Store;
+
+/**
+ * Write-ahead log and snapshots for a worker's stores.
+ *
+ * Every change is appended to the current log segment as a small record (see
+ * {@link StoreChanges}). Records are buffered and a background thread writes and
+ * fsyncs them in batches (group commit), so a purchase never pays for its own fsync. With WAL_SYNC=group a
+ * request is answered once its batch is on disk; with async it is answered at once.
+ *
+ * Stock changes are logged as deltas, which add up to the same result in any
+ * order, so lock-free purchases can be logged without a lock. Everything else is
+ * logged while holding the store's lock, in the order it was applied.
+ *
+ * Every WAL_SNAPSHOT_INTERVAL_MS, if anything changed, a new segment is started and
+ * the stores are copied, both during a brief pause in changes; the copy is then
+ * written to a snapshot, and older segments and snapshots are deleted. On startup the newest snapshot is memory-mapped (see
+ * {@link StoreSnapshot}) and the segments after it are replayed.
+ *
+ * Files live in WORKER_DATA_DIR/worker-&lt;port&gt;:
+ *   snapshot-&lt;n&gt;.bin   columnar snapshot covering every segment before n
+ *   wal-&lt;n&gt;.log        records of [int length][int crc][encoded map]
+ */
+class StoreJournal {
+    private static final int MAX_RECORD_BYTES = 64 * 1024 * 1024;
+
+    private final Path directory;
+    private final StoreRegistry registry;
+    private final boolean waitForDisk;
+    private final long groupCommitMs;
+    private final long snapshotIntervalMs;
+
+    // Records waiting for the writer thread, and the sequence numbers around them
+    private final Object bufferLock = new Object();
+    private BinaryCodec.Writer pending = new BinaryCodec.Writer();
+    private long appendedSeq;
+    private long durableSeq;
+    private long segment;
+    private FileChannel log;
+    private IOException failure;
+    // What the last snapshot covered, so an idle worker does not rewrite it
+    private long snapshotSeq;
+    private boolean replayedSinceSnapshot;
+
+    private StoreJournal(Path directory, StoreRegistry registry) {
+        this.directory = directory;
+        this.registry = registry;
+        this.waitForDisk = !ConfigLoader.getString("WAL_SYNC", "group").equalsIgnoreCase("async");
+        this.groupCommitMs = ConfigLoader.getInt("WAL_GROUP_COMMIT_MS", 5);
+        this.snapshotIntervalMs = ConfigLoader.getInt("WAL_SNAPSHOT_INTERVAL_MS", 60000);
+    }
+
+    /**
+     * Restores the registry from the worker's data directory and starts logging
+     * changes to it. Returns null if WAL_ENABLED is false.
+     */
+    static StoreJournal open(int port, StoreRegistry registry) throws IOException {
+        if (!Boolean.parseBoolean(ConfigLoader.getString("WAL_ENABLED", "true"))) {
+            return null;
+        }
+        Path directory = Path.of(ConfigLoader.getString("WORKER_DATA_DIR", "worker-data"), "worker-" + port);
+        Files.createDirectories(directory);
+
+        StoreJournal journal = new StoreJournal(directory, registry);
+        long started = System.currentTimeMillis();
+        int replayed = journal.recover();
+        System.out.println("Worker restored " + registry.size() + " stores (" + replayed + " log records) from "
+                + directory + " in " + (System.currentTimeMillis() - started) + " ms");
+
+        journal.startThread("wal-writer", journal::writeLoop);
+        if (journal.snapshotIntervalMs > 0) {
+            journal.startThread("wal-snapshot", journal::snapshotLoop);
+        }
+        return journal;
+    }
+
+    /**
+     * Buffers a change record (see {@link StoreChanges}) for the writer thread.
+     * Throws once the log has failed, so no change is taken that cannot be logged.
+     */
+    void append(Map<String, Object> record) throws IOException {
+        append(List.of(record));
+    }
+
+    /**
+     * Buffers change records that belong together: they go to disk in one batch,
+     * and if this throws none of them is logged.
+     */
+    void append(List<Map<String, Object>> records) throws IOException {
+        synchronized (bufferLock) {
+            checkFailure();
+            int start = pending.size();
+            for (Map<String, Object> record : records) {
+                int at = pending.size();
+                try {
+                    pending.writeInt(0);
+                    pending.writeInt(0);
+                    BinaryCodec.encode(record, pending);
+                } catch (IOException e) {
+                    pending.truncate(start);
+                    throw new IOException("could not log '" + record.get("op") + "': " + e.getMessage(), e);
+                }
+                int length = pending.size() - at - 8;
+                pending.setInt(at, length);
+                pending.setInt(at + 4, checksum(pending.array(), at + 8, length));
+            }
+            appendedSeq += records.size();
+            bufferLock.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until every record logged so far is on disk (only with WAL_SYNC=group).
+     * Throws if the log has failed, since those records will never get there.
+     */
+    void awaitDurable() throws IOException {
+        synchronized (bufferLock) {
+            if (!waitForDisk) {
+                checkFailure();
+                return;
+            }
+            long seq = appendedSeq;
+            while (durableSeq < seq) {
+                checkFailure();
+                try {
+                    bufferLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for the log");
+                }
+            }
+        }
+    }
+
+    // The caller holds bufferLock
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Worker log failed, changes are refused: " + failure.getMessage(), failure);
+        }
+    }
+
+    // --- Group commit ---
+
+    private void writeLoop() {
+        while (true) {
+            try {
+                synchronized (bufferLock) {
+                    while (pending.size() == 0) {
+                        bufferLock.wait();
+                    }
+                }
+                // Let more records join the batch before paying for the fsync
+                if (groupCommitMs > 0) {
+                    Thread.sleep(groupCommitMs);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                synchronized (this) {
+                    flushPending();
+                }
+            } catch (IOException e) {
+                System.err.println("Worker failed to write its log: " + e.getMessage());
+                synchronized (bufferLock) {
+                    failure = e;
+                    // Never written now; append refuses anything more
+                    pending = new BinaryCodec.Writer();
+                    bufferLock.notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    // Writes out everything buffered so far; the caller holds this journal's monitor
+    private void flushPending() throws IOException {
+        BinaryCodec.Writer batch;
+        long batchSeq;
+        synchronized (bufferLock) {
+            batch = pending;
+            batchSeq = appendedSeq;
+            pending = new BinaryCodec.Writer();
+        }
+        write(log, batch);
+        log.force(false);
+        synchronized (bufferLock) {
+            durableSeq = Math.max(durableSeq, batchSeq);
+            bufferLock.notifyAll();
+        }
+    }
+
+    // --- Snapshots ---
+
+    private void snapshotLoop() {
+        while (true) {
+            try {
+                Thread.sleep(snapshotIntervalMs);
+                snapshot();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                System.err.println("Worker snapshot failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Writes every store to a new snapshot and starts a new log segment.
+     * Changes are paused only while the log is cut over and the stores built
+     * so far are copied; the log is synced and the copy encoded after.
+     */
+    void snapshot() throws IOException {
+        Supplier<List<Store>> view;
+        long seq;
+        long previousSegment;
+        long nextSegment;
+        // Held throughout, so the writer thread cannot put later records in the old segment
+        synchronized (this) {
+            BinaryCodec.Writer tail;
+            Lock pause = registry.pauseChanges();
+            pause.lock();
+            try {
+                synchronized (bufferLock) {
+                    seq = appendedSeq;
+                    if (seq == snapshotSeq && !replayedSinceSnapshot) {
+                        return;
+                    }
+                    // Records up to here end the old segment; later ones start the new one
+                    tail = pending;
+                    pending = new BinaryCodec.Writer();
+                }
+                view = registry.snapshotView();
+            } finally {
+                pause.unlock();
+            }
+            try {
+                write(log, tail);
+                log.force(false);
+            } catch (IOException e) {
+                synchronized (bufferLock) {
+                    failure = e;
+                    pending = new BinaryCodec.Writer();
+                    bufferLock.notifyAll();
+                }
+                throw e;
+            }
+            synchronized (bufferLock) {
+                durableSeq = Math.max(durableSeq, seq);
+                bufferLock.notifyAll();
+            }
+            previousSegment = segment;
+            nextSegment = segment + 1;
+            openSegment(nextSegment);
+        }
+        byte[] encoded = StoreSnapshot.encode(nextSegment, view.get());
+
+        Path temporary = directory.resolve("snapshot.tmp");
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(encoded);
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(true);
+        }
+        Files.move(temporary, snapshotPath(nextSegment), StandardCopyOption.ATOMIC_MOVE);
+
+        // The snapshot now covers everything logged before the new segment
+        for (long old : segments().keySet()) {
+            if (old <= previousSegment) {
+                Files.deleteIfExists(segmentPath(old));
+            }
+        }
+        for (long old : snapshots().keySet()) {
+            if (old < nextSegment) {
+                try {
+                    Files.deleteIfExists(snapshotPath(old));
+                } catch (IOException e) {
+                    // Still mapped on platforms that lock mapped files; removed after a later snapshot
+                }
+            }
+        }
+        synchronized (this) {
+            snapshotSeq = Math.max(snapshotSeq, seq);
+            replayedSinceSnapshot = false;
+        }
+        System.out.println("Worker wrote a snapshot of " + registry.size() + " stores (" + encoded.length
+                + " bytes) to " + directory);
+    }
+
+    // --- Recovery ---
+
+    private int recover() throws IOException {
+        long firstSegment = 0;
+        TreeMap<Long, Path> snapshots = snapshots();
+        if (!snapshots.isEmpty()) {
+            // Only the index is built here; stores are read from the mapping when first used
+            StoreSnapshot snapshot = StoreSnapshot.open(snapshots.lastEntry().getValue());
+            firstSegment = snapshot.segment();
+            registry.restore(snapshot);
+        }
+
+        int replayed = 0;
+        long lastSegment = firstSegment;
+        for (Map.Entry<Long, Path> entry : segments().entrySet()) {
+            if (entry.getKey() < firstSegment) {
+                continue;
+            }
+            lastSegment = Math.max(lastSegment, entry.getKey());
+            byte[] bytes = Files.readAllBytes(entry.getValue());
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                Object record;
+                try {
+                    record = readRecord(buffer, bytes);
+                } catch (EOFException e) {
+                    // A record cut short by a crash; everything before it is intact
+                    System.err.println("Worker ignoring a torn record at the end of " + entry.getValue());
+                    break;
+                }
+                if (record instanceof Map<?, ?> map) {
+                    StoreChanges.apply(registry, map);
+                    replayed++;
+                    replayedSinceSnapshot = true;
+                }
+            }
+        }
+        // Keep appending after whatever was replayed, in a fresh segment
+        openSegment(lastSegment + 1);
+        return replayed;
+    }
+
+    // --- Files ---
+
+    private TreeMap<Long, Path> segments() throws IOException {
+        return numberedFiles("wal-", ".log");
+    }
+
+    private TreeMap<Long, Path> snapshots() throws IOException {
+        return numberedFiles("snapshot-", ".bin");
+    }
+
+    // Files named prefix + number + suffix, by number
+    private TreeMap<Long, Path> numberedFiles(String prefix, String suffix) throws IOException {
+        TreeMap<Long, Path> files = new TreeMap<>();
+        try (var entries = Files.newDirectoryStream(directory, prefix + "*" + suffix)) {
+            for (Path file : entries) {
+                String name = file.getFileName().toString();
+                try {
+                    files.put(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())), file);
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        return files;
+    }
+
+    private Path snapshotPath(long number) {
+        return directory.resolve("snapshot-" + number + ".bin");
+    }
+
+    private Path segmentPath(long number) {
+        return directory.resolve("wal-" + number + ".log");
+    }
+
+    private void openSegment(long number) throws IOException {
+        if (log != null) {
+            log.close();
+        }
+        segment = number;
+        log = FileChannel.open(segmentPath(number), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        // Make the new file's directory entry durable too
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException ignored) {
+            // Not every platform can open a directory
+        }
+    }
+
+    private static void write(FileChannel out, BinaryCodec.Writer data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data.array(), 0, data.size());
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    // Reads one [length][crc][body] record, throwing EOFException if it is incomplete or damaged
+    private static Object readRecord(ByteBuffer buffer, byte[] bytes) throws IOException {
+        if (buffer.remaining() < 8) {
+            throw new EOFException();
+        }
+        int length = buffer.getInt();
+        int crc = buffer.getInt();
+        if (length < 0 || length > MAX_RECORD_BYTES || length > buffer.remaining()
+                || checksum(bytes, buffer.position(), length) != crc) {
+            throw new EOFException();
+        }
+        Object value = BinaryCodec.decode(new BinaryCodec.Reader(bytes, buffer.position(), length));
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    private static int checksum(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private void startThread(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
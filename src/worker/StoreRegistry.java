@@ -0,0 +1,309 @@
+package worker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+import common.Product;
+import common.Store;
+
+/**
+ * The worker's stores together with their search indexes.
+ *
+ * Reads never lock. Changes to a store are made while holding that store's lock
+ * (see {@link #lockFor}), one of a fixed set picked by the name's hash, so work on
+ * different stores rarely contends and stores dropped here leave no lock behind.
+ * Every change also holds the shared {@link #changeLock}, which the journal takes
+ * exclusively for a moment to copy a consistent state for a snapshot.
+ *
+ * Stores restored from a {@link StoreSnapshot} are indexed straight from the
+ * snapshot and only built as objects the first time they are looked up.
+ */
+class StoreRegistry {
+    private final Map<String, Store> stores = new ConcurrentHashMap<>();
+    // Store locks, shared by hash; a power of two
+    private static final int LOCK_STRIPES = 1024;
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+    // Store names in sorted order, so pages can resume after any name
+    private final ConcurrentSkipListSet<String> names = new ConcurrentSkipListSet<>();
+    private final StoreIndex storeIndex = new StoreIndex();
+    private final GeoGridIndex geoIndex;
+    private final ReentrantReadWriteLock changes = new ReentrantReadWriteLock();
+    // Snapshot rows not built yet, by store name
+    private final Map<String, Integer> unloaded = new ConcurrentHashMap<>();
+    private volatile StoreSnapshot snapshot;
+    // Stores being moved to another worker: still readable, but no longer changed here
+    private final Set<String> frozen = ConcurrentHashMap.newKeySet();
+    // Bumped whenever a store is added or its listing changes. Starts from the clock
+    // so a restarted worker never reuses a version the Master has cached against.
+    private final AtomicLong catalogVersion = new AtomicLong(System.currentTimeMillis() << 16);
+    // Bumped by purchases; kept apart so buying does not invalidate catalog listings
+    private final AtomicLong stockVersion = new AtomicLong(System.currentTimeMillis() << 16);
+    // Numbers every change record (see StoreChanges). The clock is in the high bits and the seq never
+    // falls behind one applied from another worker, so seqs from the primary and a promoted replica compare.
+    private final AtomicLong changeSeq = new AtomicLong(System.currentTimeMillis() << 16);
+    // Seq of the primary when each replicated store was last copied from it
+    private final Map<String, Long> syncedAt = new ConcurrentHashMap<>();
+    // Seq of the newest price and rating applied, per store, for records arriving out of order
+    private final Map<String, Map<String, Long>> newest = new ConcurrentHashMap<>();
+
+    StoreRegistry(double geoCellDegrees) {
+        this.geoIndex = new GeoGridIndex(geoCellDegrees);
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    Store get(String storeName) {
+        Store store = stores.get(storeName);
+        if (store == null && !unloaded.isEmpty()) {
+            store = load(storeName);
+        }
+        return store;
+    }
+
+    // Every store for writing a new snapshot, as it is now; call while changes are paused.
+    // Built stores are copied, since they change again once changes resume. Rows not built
+    // yet are unchanged since the last snapshot, so they are only read from it when the view
+    // is. Reads may load a row meanwhile, so rows are walked before the built stores, which win.
+    Supplier<List<Store>> snapshotView() {
+        StoreSnapshot source = snapshot;
+        Map<String, Integer> rows = new HashMap<>(unloaded);
+        List<Store> built = new ArrayList<>(stores.size());
+        for (Store store : stores.values()) {
+            built.add(copyOf(store));
+        }
+        return () -> {
+            Map<String, Store> view = new HashMap<>();
+            for (Map.Entry<String, Integer> row : rows.entrySet()) {
+                view.put(row.getKey(), source.store(row.getValue()));
+            }
+            for (Store store : built) {
+                view.put(store.getStoreName(), store);
+            }
+            return new ArrayList<>(view.values());
+        };
+    }
+
+    private static Store copyOf(Store store) {
+        List<Product> products = new ArrayList<>();
+        for (Product product : store.getProducts()) {
+            Product copy = new Product(product.getProductName(), product.getProductType(), product.getProductImage(),
+                    product.getAvailableAmount(), product.getPrice());
+            copy.setUnitsSold(product.getUnitsSold());
+            copy.setActive(product.isActive());
+            products.add(copy);
+        }
+        Store copy = new Store(store.getStoreName(), store.getLatitude(), store.getLongitude(), store.getFoodCategory(),
+                store.getStars(), store.getNoOfVotes(), store.getStoreLogo(), products, store.getPriceCategory());
+        copy.setTotalSales(store.getTotalSales());
+        return copy;
+    }
+
+    // Builds a snapshot row the first time its store is asked for. Under the store's lock,
+    // so a store removed meanwhile is not put back.
+    private Store load(String storeName) {
+        if (!unloaded.containsKey(storeName)) {
+            return stores.get(storeName);
+        }
+        ReentrantLock lock = lockFor(storeName);
+        lock.lock();
+        try {
+            Integer row = unloaded.get(storeName);
+            if (row == null) {
+                return stores.get(storeName);
+            }
+            Store store = snapshot.store(row);
+            stores.put(storeName, store);
+            unloaded.remove(storeName);
+            if (unloaded.isEmpty()) {
+                // Let the mapping go once nothing refers to it
+                snapshot = null;
+            }
+            return store;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Indexes every store in the snapshot without building any of them; call before serving
+    void restore(StoreSnapshot restored) {
+        snapshot = restored;
+        for (int row = 0; row < restored.storeCount(); row++) {
+            String storeName = restored.storeName(row);
+            if (stores.containsKey(storeName) || unloaded.putIfAbsent(storeName, row) != null) {
+                continue;
+            }
+            names.add(storeName);
+            storeIndex.index(storeName, restored.foodCategory(row), restored.priceCategory(row), restored.stars(row),
+                    restored.productTypes(row));
+            geoIndex.add(storeName, restored.latitude(row), restored.longitude(row));
+        }
+        catalogVersion.incrementAndGet();
+    }
+
+    // Names after the given one (exclusive), in order; null starts from the first
+    NavigableSet<String> namesAfter(String storeName) {
+        return storeName == null ? names : names.tailSet(storeName, false);
+    }
+
+    // Adds the store unless one with the same name exists; returns whether it was added
+    boolean register(Store store) {
+        String storeName = store.getStoreName();
+        ReentrantLock lock = lockFor(storeName);
+        lock.lock();
+        try {
+            if (unloaded.containsKey(storeName) || stores.putIfAbsent(storeName, store) != null) {
+                return false;
+            }
+            names.add(storeName);
+            storeIndex.index(store);
+            geoIndex.add(storeName, store.getLatitude(), store.getLongitude());
+            catalogVersion.incrementAndGet();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Removes the store and its index entries; returns whether it was here
+    boolean remove(String storeName) {
+        ReentrantLock lock = lockFor(storeName);
+        lock.lock();
+        try {
+            Store store = get(storeName);
+            if (store == null) {
+                return false;
+            }
+            stores.remove(storeName);
+            names.remove(storeName);
+            storeIndex.remove(storeName);
+            geoIndex.remove(storeName, store.getLatitude(), store.getLongitude());
+            frozen.remove(storeName);
+            syncedAt.remove(storeName);
+            newest.remove(storeName);
+            catalogVersion.incrementAndGet();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Puts a copy of the store taken from its primary in place of this one; changes the
+    // primary made up to seq are part of the copy
+    void replace(Store store, long seq) {
+        String storeName = store.getStoreName();
+        ReentrantLock lock = lockFor(storeName);
+        lock.lock();
+        try {
+            remove(storeName);
+            register(store);
+            syncedAt.put(storeName, seq);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long syncedAt(String storeName) {
+        Long seq = syncedAt.get(storeName);
+        return seq != null ? seq : 0;
+    }
+
+    // Whether a record with this seq is newer than the last one applied for the key; call
+    // while holding the store's lock. A seq of 0 (no seq) always is.
+    boolean isNewest(String storeName, String key, long seq) {
+        if (seq == 0) {
+            return true;
+        }
+        Map<String, Long> applied = newest.computeIfAbsent(storeName, name -> new ConcurrentHashMap<>());
+        Long previous = applied.get(key);
+        if (previous != null && previous >= seq) {
+            return false;
+        }
+        applied.put(key, seq);
+        return true;
+    }
+
+    long nextChangeSeq() {
+        long now = System.currentTimeMillis() << 16;
+        return changeSeq.updateAndGet(seq -> Math.max(seq + 1, now));
+    }
+
+    // Keeps later seqs made here after one made by another worker
+    void observeSeq(long seq) {
+        changeSeq.accumulateAndGet(seq, Math::max);
+    }
+
+    // The seq of the newest change made here
+    long changeSeq() {
+        return changeSeq.get();
+    }
+
+    void freeze(String storeName) {
+        frozen.add(storeName);
+    }
+
+    void thaw(String storeName) {
+        frozen.remove(storeName);
+    }
+
+    boolean isFrozen(String storeName) {
+        return !frozen.isEmpty() && frozen.contains(storeName);
+    }
+
+    // Refresh the indexes after a change to the store; call while holding its lock
+    void reindex(Store store) {
+        storeIndex.index(store);
+        catalogVersion.incrementAndGet();
+    }
+
+    int size() {
+        return stores.size() + unloaded.size();
+    }
+
+    long catalogVersion() {
+        return catalogVersion.get();
+    }
+
+    void stockChanged() {
+        stockVersion.incrementAndGet();
+    }
+
+    long stockVersion() {
+        return stockVersion.get();
+    }
+
+    // Take one store lock at a time: stores share locks, so taking two could deadlock
+    ReentrantLock lockFor(String storeName) {
+        int hash = storeName.hashCode();
+        return locks[(hash ^ (hash >>> 16)) & (LOCK_STRIPES - 1)];
+    }
+
+    // Held (shared) while a change is applied and logged
+    Lock changeLock() {
+        return changes.readLock();
+    }
+
+    // Held while nothing may change, e.g. while taking a snapshot
+    Lock pauseChanges() {
+        return changes.writeLock();
+    }
+
+    StoreIndex index() {
+        return storeIndex;
+    }
+
+    GeoGridIndex geoIndex() {
+        return geoIndex;
+    }
+}
@@ -0,0 +1,283 @@
+package worker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import common.Product;
+import common.Store;
+
+/**
+ * A worker's stores saved in a columnar file that is read through a memory map.
+ *
+ * Opening a snapshot only maps the file and checks it; nothing is parsed up
+ * front. The registry indexes each row straight from the columns and builds the
+ * {@link Store} (with its products) the first time the store is asked for, so a
+ * worker with many stores is ready to serve almost at once.
+ *
+ * Layout (big-endian), after a fixed header:
+ *   store columns    name, latitude, longitude, foodCategory, priceCategory, logo,
+ *                    stars, votes, totalSales, firstProduct (one extra entry at the end)
+ *   product columns  name, type, image, available, sold, price, active
+ *   string table     offsets (one extra entry at the end), then the UTF-8 bytes
+ * Strings are stored once and referred to by index; -1 means null.
+ */
+class StoreSnapshot {
+    private static final int MAGIC = 0x574B534E; // "WKSN"
+    private static final int FORMAT_VERSION = 1;
+    // magic, version, segment, stores, products, strings, crc
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 4 + 4 + 4 + 4;
+    private static final int STORE_ROW_BYTES = 4 + 8 + 8 + 4 + 4 + 4 + 4 + 4 + 8 + 4;
+    private static final int PRODUCT_ROW_BYTES = 4 + 4 + 4 + 4 + 4 + 8 + 1;
+
+    private final ByteBuffer data;
+    private final long segment;
+    private final int storeCount;
+    private final int productCount;
+    private final int stringCount;
+    // Start of each column
+    private final int storeNames, latitudes, longitudes, foodCategories, priceCategories, logos,
+            stars, votes, totalSales, firstProducts;
+    private final int productNames, productTypes, productImages, available, sold, prices, active;
+    private final int stringOffsets, stringBytes;
+    // Strings decoded so far; categories and product types repeat a lot
+    private final String[] strings;
+
+    private StoreSnapshot(ByteBuffer data, long segment, int storeCount, int productCount, int stringCount) {
+        this.data = data;
+        this.segment = segment;
+        this.storeCount = storeCount;
+        this.productCount = productCount;
+        this.stringCount = stringCount;
+        this.strings = new String[stringCount];
+
+        int position = HEADER_BYTES;
+        storeNames = position; position += 4 * storeCount;
+        latitudes = position; position += 8 * storeCount;
+        longitudes = position; position += 8 * storeCount;
+        foodCategories = position; position += 4 * storeCount;
+        priceCategories = position; position += 4 * storeCount;
+        logos = position; position += 4 * storeCount;
+        stars = position; position += 4 * storeCount;
+        votes = position; position += 4 * storeCount;
+        totalSales = position; position += 8 * storeCount;
+        firstProducts = position; position += 4 * (storeCount + 1);
+        productNames = position; position += 4 * productCount;
+        productTypes = position; position += 4 * productCount;
+        productImages = position; position += 4 * productCount;
+        available = position; position += 4 * productCount;
+        sold = position; position += 4 * productCount;
+        prices = position; position += 8 * productCount;
+        active = position; position += productCount;
+        stringOffsets = position; position += 4 * (stringCount + 1);
+        stringBytes = position;
+    }
+
+    /** Maps the snapshot file and checks its header and checksum. */
+    static StoreSnapshot open(Path file) throws IOException {
+        MappedByteBuffer data;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (data.capacity() < HEADER_BYTES || data.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not a worker snapshot");
+        }
+        if (data.getInt(4) != FORMAT_VERSION) {
+            throw new IOException(file + " has unsupported snapshot version " + data.getInt(4));
+        }
+        long segment = data.getLong(8);
+        int storeCount = data.getInt(16);
+        int productCount = data.getInt(20);
+        int stringCount = data.getInt(24);
+        long tableEnd = HEADER_BYTES + (long) STORE_ROW_BYTES * storeCount + 4L + (long) PRODUCT_ROW_BYTES * productCount
+                + 4L * (stringCount + 1);
+        if (storeCount < 0 || productCount < 0 || stringCount < 0 || tableEnd > data.capacity()) {
+            throw new IOException(file + " is damaged");
+        }
+        StoreSnapshot snapshot = new StoreSnapshot(data, segment, storeCount, productCount, stringCount);
+        if (snapshot.stringBytes + snapshot.stringOffset(stringCount) != data.capacity()
+                || checksum(data, HEADER_BYTES, data.capacity() - HEADER_BYTES) != data.getInt(28)) {
+            throw new IOException(file + " is damaged");
+        }
+        return snapshot;
+    }
+
+    /** Encodes the stores; the log segment is the first one not covered by the snapshot. */
+    static byte[] encode(long segment, List<Store> stores) {
+        Map<String, Integer> stringIds = new HashMap<>();
+        List<byte[]> stringValues = new ArrayList<>();
+        int productCount = 0;
+        List<List<Product>> storeProducts = new ArrayList<>(stores.size());
+        for (Store store : stores) {
+            List<Product> products = new ArrayList<>(store.getProducts());
+            storeProducts.add(products);
+            productCount += products.size();
+        }
+
+        // Write the columns first, collecting strings as they are referred to
+        int storeCount = stores.size();
+        int columnBytes = STORE_ROW_BYTES * storeCount + 4 + PRODUCT_ROW_BYTES * productCount;
+        ByteBuffer columns = ByteBuffer.allocate(columnBytes);
+        StoreSnapshot layout = new StoreSnapshot(columns, segment, storeCount, productCount, 0);
+        int product = 0;
+        for (int row = 0; row < storeCount; row++) {
+            Store store = stores.get(row);
+            int at = row * 4;
+            int wideAt = row * 8;
+            columns.putInt(layout.storeNames - HEADER_BYTES + at, stringId(store.getStoreName(), stringIds, stringValues));
+            columns.putDouble(layout.latitudes - HEADER_BYTES + wideAt, store.getLatitude());
+            columns.putDouble(layout.longitudes - HEADER_BYTES + wideAt, store.getLongitude());
+            columns.putInt(layout.foodCategories - HEADER_BYTES + at, stringId(store.getFoodCategory(), stringIds, stringValues));
+            columns.putInt(layout.priceCategories - HEADER_BYTES + at, stringId(store.getPriceCategory(), stringIds, stringValues));
+            columns.putInt(layout.logos - HEADER_BYTES + at, stringId(store.getStoreLogo(), stringIds, stringValues));
+            columns.putInt(layout.stars - HEADER_BYTES + at, store.getStars());
+            columns.putInt(layout.votes - HEADER_BYTES + at, store.getNoOfVotes());
+            columns.putDouble(layout.totalSales - HEADER_BYTES + wideAt, store.getTotalSales());
+            columns.putInt(layout.firstProducts - HEADER_BYTES + at, product);
+            for (Product p : storeProducts.get(row)) {
+                int pAt = product * 4;
+                columns.putInt(layout.productNames - HEADER_BYTES + pAt, stringId(p.getProductName(), stringIds, stringValues));
+                columns.putInt(layout.productTypes - HEADER_BYTES + pAt, stringId(p.getProductType(), stringIds, stringValues));
+                columns.putInt(layout.productImages - HEADER_BYTES + pAt, stringId(p.getProductImage(), stringIds, stringValues));
+                columns.putInt(layout.available - HEADER_BYTES + pAt, p.getAvailableAmount());
+                columns.putInt(layout.sold - HEADER_BYTES + pAt, p.getUnitsSold());
+                columns.putDouble(layout.prices - HEADER_BYTES + product * 8, p.getPrice());
+                columns.put(layout.active - HEADER_BYTES + product, (byte) (p.isActive() ? 1 : 0));
+                product++;
+            }
+        }
+        columns.putInt(layout.firstProducts - HEADER_BYTES + storeCount * 4, product);
+
+        int stringCount = stringValues.size();
+        int stringTotal = 0;
+        for (byte[] value : stringValues) {
+            stringTotal += value.length;
+        }
+        ByteBuffer out = ByteBuffer.allocate(HEADER_BYTES + columnBytes + 4 * (stringCount + 1) + stringTotal);
+        out.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(segment)
+                .putInt(storeCount).putInt(productCount).putInt(stringCount).putInt(0);
+        out.put(columns.array());
+        int offset = 0;
+        for (byte[] value : stringValues) {
+            out.putInt(offset);
+            offset += value.length;
+        }
+        out.putInt(offset);
+        for (byte[] value : stringValues) {
+            out.put(value);
+        }
+        out.putInt(28, checksum(out, HEADER_BYTES, out.capacity() - HEADER_BYTES));
+        return out.array();
+    }
+
+    long segment() {
+        return segment;
+    }
+
+    int storeCount() {
+        return storeCount;
+    }
+
+    String storeName(int row) {
+        return string(data.getInt(storeNames + row * 4));
+    }
+
+    double latitude(int row) {
+        return data.getDouble(latitudes + row * 8);
+    }
+
+    double longitude(int row) {
+        return data.getDouble(longitudes + row * 8);
+    }
+
+    String foodCategory(int row) {
+        return string(data.getInt(foodCategories + row * 4));
+    }
+
+    String priceCategory(int row) {
+        return string(data.getInt(priceCategories + row * 4));
+    }
+
+    int stars(int row) {
+        return data.getInt(stars + row * 4);
+    }
+
+    // The product types sold by the store, without building its products
+    Set<String> productTypes(int row) {
+        Set<String> types = new LinkedHashSet<>();
+        for (int product = firstProduct(row); product < firstProduct(row + 1); product++) {
+            types.add(string(data.getInt(productTypes + product * 4)));
+        }
+        return types;
+    }
+
+    /** Builds the store in the given row, with all its products. */
+    Store store(int row) {
+        List<Product> products = new ArrayList<>(firstProduct(row + 1) - firstProduct(row));
+        for (int index = firstProduct(row); index < firstProduct(row + 1); index++) {
+            Product product = new Product(string(data.getInt(productNames + index * 4)),
+                    string(data.getInt(productTypes + index * 4)), string(data.getInt(productImages + index * 4)),
+                    data.getInt(available + index * 4), data.getDouble(prices + index * 8));
+            product.setUnitsSold(data.getInt(sold + index * 4));
+            product.setActive(data.get(active + index) != 0);
+            products.add(product);
+        }
+        Store store = new Store(storeName(row), latitude(row), longitude(row), foodCategory(row),
+                stars(row), data.getInt(votes + row * 4), string(data.getInt(logos + row * 4)), products,
+                priceCategory(row));
+        store.setTotalSales(data.getDouble(totalSales + row * 8));
+        return store;
+    }
+
+    private int firstProduct(int row) {
+        return data.getInt(firstProducts + row * 4);
+    }
+
+    private int stringOffset(int id) {
+        return data.getInt(stringOffsets + id * 4);
+    }
+
+    private String string(int id) {
+        if (id < 0 || id >= stringCount) {
+            return null;
+        }
+        String value = strings[id];
+        if (value == null) {
+            int start = stringOffset(id);
+            byte[] bytes = new byte[stringOffset(id + 1) - start];
+            data.get(stringBytes + start, bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+            // Racing threads decode the same value; either copy is fine
+            strings[id] = value;
+        }
+        return value;
+    }
+
+    private static int stringId(String value, Map<String, Integer> ids, List<byte[]> values) {
+        if (value == null) {
+            return -1;
+        }
+        return ids.computeIfAbsent(value, v -> {
+            values.add(v.getBytes(StandardCharsets.UTF_8));
+            return values.size() - 1;
+        });
+    }
+
+    private static int checksum(ByteBuffer data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data.slice(offset, length));
+        return (int) crc.getValue();
+    }
+}
@@ -2,6 +2,10 @@ package worker;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import common.*;
 import common.ConfigLoader;
 
@@ -21,13 +25,17 @@ public class Worker {
             String localIP = InetAddress.getLocalHost().getHostAddress();
             System.out.println("Worker's local IP: " + localIP);
 
-            try (ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getByName("0.0.0.0"))) {
+            // Bring back the stores saved before the last shutdown before taking requests
+            WorkerHandler.restore(port);
+
+            ExecutorService connectionExecutor = ServerExecutor.create("WORKER");
+            try (ServerSocket serverSocket = new ServerSocket(port, ServerExecutor.backlog("WORKER"), InetAddress.getByName("0.0.0.0"))) {
                 System.out.println("Worker started on port " + port);
                 System.out.println("Connected to Master at " + masterIP);
 
                 while (true) {
                     Socket socket = serverSocket.accept();
-                    new Thread(new WorkerHandler(socket, port, masterIP, localIP)).start();
+                    ServerExecutor.dispatch(connectionExecutor, socket, new WorkerHandler(socket, port, masterIP, localIP));
                 }
             }
         } catch (IOException e) {
@@ -42,10 +50,23 @@ class WorkerHandler implements Runnable {
     private final String masterIP;
     private final String localIP;
     private static final int REDUCER_PORT = ConfigLoader.getInt("REDUCER_PORT", 7000);
-    private static final Map<String, Store> storeMap = new HashMap<>();
+    private static final StoreRegistry registry = new StoreRegistry(ConfigLoader.getDouble("GEO_CELL_DEGREES", 0.05));
+    // Requests arriving on one connection run in parallel; responses are matched by request id
+    private static final ExecutorService requestExecutor = ServerExecutor.create("WORKER_REQUEST");
+    // Commands that change stores; they are logged to the journal before they are answered
+    private static final Set<String> CHANGES = Set.of("register", "register_batch", "update", "add_product", "purchase",
+            "checkout", "rate", "drop_stores", "apply_changes", "sync_stores");
+    private static volatile StoreJournal journal;
+    // Change records made by the request on this thread, if the Master asked for them to stream to replicas
+    private static final ThreadLocal<List<Map<String, Object>>> replicated = new ThreadLocal<>();
+
+    // Loads the saved stores and starts logging changes (unless WAL_ENABLED=false)
+    static void restore(int port) throws IOException {
+        journal = StoreJournal.open(port, registry);
+    }
 
     private static Store getStore(String name) {
-        return storeMap.get(name);
+        return registry.get(name);
     }
 
     public WorkerHandler(Socket socket, int port, String masterIP, String localIP) {
@@ -57,260 +78,661 @@ class WorkerHandler implements Runnable {
 
     @Override
     public void run() {
-        try (
-                ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream())
-        ) {
-            String command = (String) in.readObject();
-            Object request = in.readObject();
-
-            switch (command) {
-                // Manager actions
-                case "register" -> {
-                    Store store = (Store) request;
-                    if (!storeMap.containsKey(store.getStoreName())) {
-                        synchronized (storeMap) {
-                            storeMap.put(store.getStoreName(), store);
+        try (MessageChannel channel = MessageChannel.accept(socket)) {
+            // The Master keeps this connection open and sends many requests over it,
+            // each one tagged with a request id that is echoed back with the response,
+            // followed by the catalog and stock versions so the Master can tell when its caches are stale
+            while (true) {
+                Long requestId;
+                try {
+                    requestId = (Long) channel.readObject();
+                } catch (EOFException e) {
+                    break;
+                }
+                String command = (String) channel.readObject();
+                Object request = channel.readObject();
+
+                try {
+                    requestExecutor.execute(() -> {
+                        Object response;
+                        try {
+                            response = CHANGES.contains(command) ? change(command, request) : handle(command, request);
+                        } catch (Exception e) {
+                            System.err.println("Worker error on '" + command + "': " + e.getMessage());
+                            response = "Error: " + e.getMessage();
                         }
-                        out.writeObject("Store registered: " + store.getStoreName());
-                    } else {
-                        out.writeObject("Store already exists: " + store.getStoreName());
-                    }
+                        respond(channel, requestId, response);
+                        System.out.println("Worker on port " + port + " processed request " + requestId + " (" + command + ")");
+                    });
+                } catch (RejectedExecutionException e) {
+                    respond(channel, requestId, "Error: Worker overloaded, please retry");
                 }
+            }
+        } catch (Exception e) {
+            System.err.println("Worker error: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            try { socket.close(); } catch (IOException ignored) {}
+        }
+    }
 
-                case "update" -> {
-                    @SuppressWarnings("unchecked")
-                    Map<String, Object> updates = (Map<String, Object>) request;
-                    String storeName = (String) updates.get("storeName");
-                    String productName = (String) updates.get("productName");
+    private void respond(MessageChannel channel, Long requestId, Object response) {
+        synchronized (channel) {
+            try {
+                channel.writeObject(requestId);
+                channel.writeObject(registry.catalogVersion());
+                channel.writeObject(registry.stockVersion());
+                try {
+                    channel.writeObject(response);
+                } catch (IOException e) {
+                    // The response could not be encoded; still answer so the request id is not left dangling
+                    channel.writeObject("Error: " + e.getMessage());
+                }
+                channel.flush();
+            } catch (IOException e) {
+                System.err.println("Worker failed to send response " + requestId + ": " + e.getMessage());
+            }
+        }
+    }
 
-                    Store store = getStore(storeName);
-                    if (store == null) {
-                        out.writeObject("Error: Store not found");
-                        break;
-                    }
+    // Applies and logs a change while no snapshot can start, then waits for the log to reach disk.
+    // With "replicate" in the request, the answer also carries the change records for the replicas.
+    private Object change(String command, Object request) throws IOException {
+        List<Map<String, Object>> records = request instanceof Map<?, ?> map && Boolean.TRUE.equals(map.get("replicate"))
+                ? new ArrayList<>() : null;
+        Lock changes = registry.changeLock();
+        Object response;
+        changes.lock();
+        replicated.set(records);
+        try {
+            if (request instanceof Map<?, ?> map && map.get("storeName") instanceof String storeName
+                    && registry.isFrozen(storeName)) {
+                return WorkerReplies.STORE_MOVING;
+            }
+            response = handle(command, request);
+        } finally {
+            replicated.remove();
+            changes.unlock();
+        }
+        if (journal != null) {
+            journal.awaitDurable();
+        }
+        if (records == null) {
+            return response;
+        }
+        Map<String, Object> result = new HashMap<>();
+        result.put("response", response);
+        result.put("changes", records);
+        return result;
+    }
 
-                    // Find the product in the store
-                    Product product = null;
-                    for (Product p : store.getProducts()) {
-                        if (p.getProductName().equals(productName)) {
-                            product = p;
-                            break;
-                        }
+    // Logs a change and keeps it for the replicas if the running request asked for that;
+    // throws if the log has failed, which turns the request into an error
+    private static void record(Map<String, Object> change) throws IOException {
+        record(List.of(change));
+    }
+
+    // Logs changes that belong together: all of them, or none if this throws
+    private static void record(List<Map<String, Object>> changes) throws IOException {
+        for (Map<String, Object> change : changes) {
+            change.putIfAbsent("seq", registry.nextChangeSeq());
+        }
+        if (journal != null) {
+            journal.append(changes);
+        }
+        List<Map<String, Object>> records = replicated.get();
+        if (records != null) {
+            records.addAll(changes);
+        }
+    }
+
+    // Adds the store unless one with its name exists. It is logged under the store's lock
+    // before it is visible, so lock-free purchases of it are always logged after it.
+    private static boolean register(Store store) throws IOException {
+        ReentrantLock lock = registry.lockFor(store.getStoreName());
+        lock.lock();
+        try {
+            if (registry.get(store.getStoreName()) != null) {
+                return false;
+            }
+            record(StoreChanges.register(store));
+            registry.register(store);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Up to pageSize store summaries taken in name order, with the cursor to continue from if more remain
+    private Map<String, Object> page(Iterable<String> sortedNames, int pageSize, String productView) {
+        int limit = Math.max(1, pageSize);
+        List<StoreSummary> stores = new ArrayList<>();
+        String nextCursor = null;
+        for (String storeName : sortedNames) {
+            if (stores.size() == limit) {
+                nextCursor = stores.get(stores.size() - 1).getStoreName();
+                break;
+            }
+            Store store = getStore(storeName);
+            if (store != null) {
+                stores.add(StoreSummary.of(store, productView));
+            }
+        }
+
+        Map<String, Object> page = new HashMap<>();
+        page.put("stores", stores);
+        page.put("nextCursor", nextCursor);
+        return page;
+    }
+
+    private Object handle(String command, Object request) throws IOException {
+        switch (command) {
+            // Manager actions
+            case "register" -> {
+                Store store = (Store) request;
+                if (!register(store)) {
+                    return "Store already exists: " + store.getStoreName();
+                }
+                return "Store registered: " + store.getStoreName();
+            }
+
+            case "register_batch" -> {
+                // Many stores at once from a bulk import; the batch shares one wait for the log
+                @SuppressWarnings("unchecked")
+                List<Store> stores = (List<Store>) request;
+                int registered = 0;
+                for (Store store : stores) {
+                    if (register(store)) {
+                        registered++;
                     }
+                }
+                Map<String, Object> counts = new HashMap<>();
+                counts.put("registered", registered);
+                counts.put("duplicates", stores.size() - registered);
+                return counts;
+            }
+
+            case "update" -> {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> updates = (Map<String, Object>) request;
+                String storeName = (String) updates.get("storeName");
+                String productName = (String) updates.get("productName");
+
+                Store store = getStore(storeName);
+                if (store == null) {
+                    return "Error: Store not found";
+                }
+
+                ReentrantLock lock = registry.lockFor(storeName);
+                lock.lock();
+                try {
+                    Product product = store.getProduct(productName);
 
                     if (product == null) {
-                        out.writeObject("Error: Product not found in store");
-                        break;
+                        return "Error: Product not found in store";
                     }
 
                     // Update product attributes
                     if (updates.containsKey("price")) {
                         product.setPrice((Double) updates.get("price"));
-
+                        record(StoreChanges.price(storeName, productName, product.getPrice()));
                     }
                     if (updates.containsKey("quantity")) {
-                        product.setAvailableAmount((Integer) updates.get("quantity"));
+                        // Purchases may run concurrently, so the log records the change rather than the new amount
+                        int quantity = (Integer) updates.get("quantity");
+                        int previous = product.replaceAvailableAmount(quantity);
+                        record(StoreChanges.stock(storeName, productName, quantity - previous, 0, 0));
                     }
 
                     // If this is a removal request
-                    if (updates.containsKey("remove") && updates.get("remove").equals(true)) {
-                        product.setActive(false);
-                        out.writeObject("Product deactivated successfully");
-                    } else {
-                        out.writeObject("Product updated successfully");
+                    boolean removed = updates.containsKey("remove") && updates.get("remove").equals(true);
+                    if (removed) {
+                        store.deactivateProduct(productName);
+                        record(StoreChanges.deactivate(storeName, productName));
                     }
+                    registry.reindex(store);
+                    return removed ? "Product deactivated successfully" : "Product updated successfully";
+                } finally {
+                    lock.unlock();
                 }
+            }
 
-                case "add_product" -> {
-                    @SuppressWarnings("unchecked")
-                    Map<String, Object> productInfo = (Map<String, Object>) request;
-                    String storeName = (String) productInfo.get("storeName");
-                    String productName = (String) productInfo.get("productName");
-                    String productImage = (String) productInfo.get("productImage");
-                    String productType = (String) productInfo.get("productType");
-                    int availableAmount = (Integer) productInfo.get("availableAmount");
-                    double price = (Double) productInfo.get("price");
-
-                    Store store = getStore(storeName);
-                    if (store == null) {
-                        out.writeObject("Error: Store not found");
-                        break;
-                    }
+            case "add_product" -> {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> productInfo = (Map<String, Object>) request;
+                String storeName = (String) productInfo.get("storeName");
+                String productName = (String) productInfo.get("productName");
+                String productImage = (String) productInfo.get("productImage");
+                String productType = (String) productInfo.get("productType");
+                int availableAmount = (Integer) productInfo.get("availableAmount");
+                double price = (Double) productInfo.get("price");
+
+                Store store = getStore(storeName);
+                if (store == null) {
+                    return "Error: Store not found";
+                }
 
+                ReentrantLock lock = registry.lockFor(storeName);
+                lock.lock();
+                try {
                     // Check if product already exists
-                    for (Product p : store.getProducts()) {
-                        if (p.getProductName().equals(productName)) {
-                            out.writeObject("Error: Product already exists in store");
-                            break;
-                        }
+                    if (store.getProduct(productName) != null) {
+                        return "Error: Product already exists in store";
                     }
 
-                    // Create and add new product
+                    // Create and add new product, logged first so purchases of it are logged after it
                     Product newProduct = new Product(productName, productType, productImage,availableAmount, price);
+                    record(StoreChanges.addProduct(storeName, newProduct));
                     store.addProduct(newProduct);
-                    out.writeObject("Product added successfully");
+                    registry.reindex(store);
+                    return "Product added successfully";
+                } finally {
+                    lock.unlock();
                 }
+            }
 
-                case "sales_by_product" -> {
-                    String storeName = (String) request;
-                    Store store = getStore(storeName);
-                    Map<String, Object> products;
-                    if (store == null) {
-                        out.writeObject("Error: Store not found");
+            // Moving stores to another worker (see the Master's Rebalancer)
+            case "export_stores" -> {
+                @SuppressWarnings("unchecked")
+                List<String> storeNames = (List<String>) request;
+                List<Store> exported = new ArrayList<>();
+                Map<String, Object> export = new HashMap<>();
+                // With changes paused, no change can land after a store is copied out
+                Lock pause = registry.pauseChanges();
+                pause.lock();
+                try {
+                    for (String storeName : storeNames) {
+                        Store store = getStore(storeName);
+                        if (store != null) {
+                            registry.freeze(storeName);
+                            exported.add(store);
+                        }
                     }
-                    synchronized (store) {
-                        products = new HashMap<>();
-                        products.put(storeName, store.getProducts());
+                    // Every change in the copies has a seq up to this one
+                    export.put("seq", registry.changeSeq());
+                } finally {
+                    pause.unlock();
+                }
+                export.put("stores", exported);
+                return export;
+            }
+
+            // Copies of stores taken from their primary by export_stores, replacing any held here
+            case "sync_stores" -> {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> sync = (Map<String, Object>) request;
+                @SuppressWarnings("unchecked")
+                List<Store> stores = (List<Store>) sync.get("stores");
+                long seq = (Long) sync.get("seq");
+                for (Store store : stores) {
+                    Map<String, Object> change = StoreChanges.sync(store, seq);
+                    record(change);
+                    StoreChanges.apply(registry, change);
+                }
+                Map<String, Object> counts = new HashMap<>();
+                counts.put("synced", stores.size());
+                return counts;
+            }
+
+            // Changes made by a store's primary, streamed here by the Master
+            case "apply_changes" -> {
+                @SuppressWarnings("unchecked")
+                List<Map<String, Object>> changes = (List<Map<String, Object>>) request;
+                int applied = 0;
+                List<String> missing = new ArrayList<>();
+                for (Map<String, Object> change : changes) {
+                    switch (StoreChanges.apply(registry, change)) {
+                        case APPLIED -> {
+                            record(change);
+                            applied++;
+                        }
+                        case MISSING -> missing.add(change.get("op") + " of " + change.get("storeName"));
+                        case SKIPPED -> {
+                        }
                     }
-                    out.writeObject(products);
-                }
-
-                case "sales_by_food_category" -> {
-                    String category = (String) request;
-                    Map<String, Double> result = new HashMap<>();
-                    for (Store store : storeMap.values()) {
-                        if (store.getFoodCategory().equals(category)) {
-                            double storeTotal = 0.0;
-                            for (Product p : store.getProducts()) {
-                                if (p.isActive()) {
-                                    storeTotal += p.getUnitsSold() * p.getPrice();
-                                }
-                            }
-                            result.put(store.getStoreName(), storeTotal);
+                }
+                // Came before the store or product it changes, so this copy is now behind; the
+                // Master marks it down on this answer and syncs it from the primary
+                if (!missing.isEmpty()) {
+                    return "Error: Could not apply " + String.join(", ", missing);
+                }
+                Map<String, Object> counts = new HashMap<>();
+                counts.put("applied", applied);
+                return counts;
+            }
+
+            case "drop_stores" -> {
+                @SuppressWarnings("unchecked")
+                List<String> storeNames = (List<String>) request;
+                int dropped = 0;
+                for (String storeName : storeNames) {
+                    ReentrantLock lock = registry.lockFor(storeName);
+                    lock.lock();
+                    try {
+                        // Only stores handed over by export_stores are dropped
+                        if (registry.isFrozen(storeName) && registry.remove(storeName)) {
+                            record(StoreChanges.drop(storeName));
+                            dropped++;
                         }
+                    } finally {
+                        lock.unlock();
                     }
-                    out.writeObject(result);
                 }
+                Map<String, Object> counts = new HashMap<>();
+                counts.put("dropped", dropped);
+                return counts;
+            }
 
-                case "sales_by_product_type" -> {
-                    String type = (String) request;
-                    Map<String, Double> result = new HashMap<>();
-                    for (Store store : storeMap.values()) {
-                        double storeCategoryTotal = 0.0;
+            case "thaw_stores" -> {
+                @SuppressWarnings("unchecked")
+                List<String> storeNames = (List<String>) request;
+                for (String storeName : storeNames) {
+                    registry.thaw(storeName);
+                }
+                return "Stores thawed: " + storeNames.size();
+            }
+
+            case "sales_by_product" -> {
+                String storeName = (String) request;
+                Store store = getStore(storeName);
+                Map<String, Object> products;
+                if (store == null) {
+                    return "Error: Store not found";
+                }
+                ReentrantLock lock = registry.lockFor(storeName);
+                lock.lock();
+                try {
+                    products = new HashMap<>();
+                    products.put(storeName, new ArrayList<>(store.getProducts()));
+                } finally {
+                    lock.unlock();
+                }
+                return products;
+            }
+
+            case "sales_by_food_category" -> {
+                String category = (String) request;
+                Map<String, Double> result = new HashMap<>();
+                for (String storeName : registry.index().storesInCategory(category)) {
+                    Store store = getStore(storeName);
+                    if (store != null && store.getFoodCategory().equals(category)) {
+                        double storeTotal = 0.0;
                         for (Product p : store.getProducts()) {
-                            if (p.isActive() && p.getProductType().equals(type)) {
-                                storeCategoryTotal += p.getUnitsSold() * p.getPrice();
+                            if (p.isActive()) {
+                                storeTotal += p.getUnitsSold() * p.getPrice();
                             }
                         }
-                        if (storeCategoryTotal > 0) {
-                            result.put(store.getStoreName(), storeCategoryTotal);
-                        }
+                        result.put(store.getStoreName(), storeTotal);
                     }
-                    out.writeObject(result);
                 }
+                return result;
+            }
 
+            case "sales_by_product_type" -> {
+                String type = (String) request;
+                Map<String, Double> result = new HashMap<>();
+                for (String storeName : registry.index().storesWithProductType(type)) {
+                    Store store = getStore(storeName);
+                    if (store == null) {
+                        continue;
+                    }
+                    double storeCategoryTotal = 0.0;
+                    for (Product p : store.getProducts()) {
+                        if (p.isActive() && type.equals(p.getProductType())) {
+                            storeCategoryTotal += p.getUnitsSold() * p.getPrice();
+                        }
+                    }
+                    if (storeCategoryTotal > 0) {
+                        result.put(storeName, storeCategoryTotal);
+                    }
+                }
+                return result;
+            }
 
-                // Client actions
-                case "search" -> {
-                    @SuppressWarnings("unchecked")
-                    Map<String, Object> filters = (Map<String, Object>) request;
-                    String category = (String) filters.get("foodCategory");
-                    String priceCategory = (String) filters.get("priceCategory");
-                    int stars = (Integer) filters.get("stars");
-                    List<Store> matched = new ArrayList<>();
 
-                    // First filter stores by category, price, and stars
-                    for (Store s : storeMap.values()) {
-                        if (s.getFoodCategory().equals(category) &&
-                                s.getPriceCategory().equals(priceCategory) &&
-                                s.getStars() >= stars) {
-                            matched.add(s);
+            // Client actions
+            case "search" -> {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> filters = (Map<String, Object>) request;
+                String category = (String) filters.get("foodCategory");
+                String priceCategory = (String) filters.get("priceCategory");
+                int stars = (Integer) filters.get("stars");
+                List<Store> matched = new ArrayList<>();
+
+                // Client location, so stores out of range never leave this worker
+                Double latitude = (Double) filters.get("latitude");
+                Double longitude = (Double) filters.get("longitude");
+                Double radiusKm = (Double) filters.get("radiusKm");
+                boolean filterByDistance = latitude != null && longitude != null && radiusKm != null;
+                GeoUtils.BoundingBox box = filterByDistance ? new GeoUtils.BoundingBox(latitude, longitude, radiusKm) : null;
+
+                // Candidates by category, price, and stars come from the indexes, then filter by distance
+                for (String storeName : registry.index().find(category, priceCategory, stars)) {
+                    Store s = getStore(storeName);
+                    if (s != null && s.getFoodCategory().equals(category) &&
+                            s.getPriceCategory().equals(priceCategory) &&
+                            s.getStars() >= stars) {
+                        if (filterByDistance && !(box.contains(s.getLatitude(), s.getLongitude())
+                                && GeoUtils.isWithinKm(latitude, longitude, s.getLatitude(), s.getLongitude(), radiusKm))) {
+                            continue;
                         }
+                        matched.add(s);
                     }
+                }
+
+                // Top-K: only this worker's best limit stores go to the reducer, already in order
+                Integer limit = (Integer) filters.get("limit");
+                String sortBy = (String) filters.get("sortBy");
+                Comparator<StoreInfo> order = StoreRanking.comparator(sortBy,
+                        latitude != null ? latitude : 0, longitude != null ? longitude : 0);
+                if (order != null) {
+                    matched = StoreRanking.topK(matched, order, limit != null ? limit : 0);
+                } else if (limit != null && limit > 0 && matched.size() > limit) {
+                    matched = new ArrayList<>(matched.subList(0, limit));
+                }
+
+                // Only the fields the client is shown leave the worker
+                String productView = (String) filters.get("productView");
+                List<StoreSummary> summaries = new ArrayList<>(matched.size());
+                for (Store store : matched) {
+                    summaries.add(StoreSummary.of(store, productView));
+                }
 
-                    Map<String, Object> requestData = new HashMap<>();
-                    System.out.println("Worker " + localIP + ":" + port + " sending result for UUID: " + filters.get("requestId") + " with " + matched.size() + " stores");
-                    requestData.put("requestId", filters.get("requestId"));
-                    requestData.put("stores", matched);
-                    requestData.put("categories", List.of(category));
-                    requestData.put("price", priceCategory);
-                    requestData.put("stars", stars);
-
-                    System.out.println("IN WORKER " + localIP + ":" + port + " - INPUT REDUCER STORES:" + requestData.values());
-                    // Send to Reducer
-                    try (Socket reducerSocket = new Socket(masterIP, REDUCER_PORT);
-                         ObjectOutputStream reducerOut = new ObjectOutputStream(reducerSocket.getOutputStream())) {
-                        reducerOut.writeObject(requestData);
-                        reducerOut.flush();
-                        out.writeObject("ACK");
-                        out.flush();
+                Map<String, Object> requestData = new HashMap<>();
+                System.out.println("Worker " + localIP + ":" + port + " sending result for UUID: " + filters.get("requestId") + " with " + matched.size() + " stores");
+                requestData.put("requestId", filters.get("requestId"));
+                requestData.put("stores", summaries);
+                requestData.put("categories", List.of(category));
+                requestData.put("price", priceCategory);
+                requestData.put("stars", stars);
+                requestData.put("expectedWorkers", filters.get("expectedWorkers"));
+                requestData.put("limit", limit);
+                requestData.put("sortBy", sortBy);
+                requestData.put("latitude", latitude);
+                requestData.put("longitude", longitude);
+
+                // The Master merges the results itself and waits for them on this request
+                if ("master".equals(filters.get("reduceMode"))) {
+                    return requestData;
+                }
+
+                // Send to Reducer
+                try (Socket reducerSocket = new Socket(masterIP, REDUCER_PORT);
+                     MessageChannel reducerOut = MessageChannel.connect(reducerSocket)) {
+                    reducerOut.writeObject(requestData);
+                    reducerOut.flush();
+                }
+                return "ACK";
+            }
+
+            case "purchase" -> {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> purchaseInfo = (Map<String, Object>) request;
+                String storeName = (String) purchaseInfo.get("storeName");
+                String productName = (String) purchaseInfo.get("productName");
+                int quantity = (Integer) purchaseInfo.get("quantity");
+
+                Store store = getStore(storeName);
+                if (store == null) {
+                    return "Error: Store not found";
+                }
+
+                if (quantity <= 0) {
+                    return "Error: Quantity must be positive";
+                }
+
+                // No store lock: stock is taken with a compare-and-set on the product
+                Product product = store.getActiveProduct(productName);
+                if (product == null) {
+                    return "Error: Product not found in store";
+                } else if (!product.purchase(quantity)) {
+                    return "Error: Not enough stock available";
+                } else {
+                    double amount = quantity * product.getPrice();
+                    try {
+                        record(StoreChanges.stock(storeName, productName, -quantity, quantity, amount));
+                    } catch (IOException e) {
+                        // Not logged, so not taken
+                        product.restock(quantity);
+                        throw e;
                     }
+                    store.addToTotalSales(amount);
+                    registry.stockChanged();
+                    return "Purchase successful: " + quantity + "x " + productName;
                 }
+            }
 
-                case "purchase" -> {
-                    @SuppressWarnings("unchecked")
-                    Map<String, Object> purchaseInfo = (Map<String, Object>) request;
-                    String storeName = (String) purchaseInfo.get("storeName");
-                    String productName = (String) purchaseInfo.get("productName");
-                    int quantity = (Integer) purchaseInfo.get("quantity");
+            case "checkout" -> {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> order = (Map<String, Object>) request;
+                String storeName = (String) order.get("storeName");
+                @SuppressWarnings("unchecked")
+                List<Map<String, Object>> items = (List<Map<String, Object>>) order.get("items");
 
-                    Store store = getStore(storeName);
-                    if (store == null) {
-                        out.writeObject("Error: Store not found");
-                        break;
+                Store store = getStore(storeName);
+                if (store == null) {
+                    return "Error: Store not found";
+                }
+                if (items == null || items.isEmpty()) {
+                    return "Error: Cart is empty";
+                }
+
+                // Merge repeated lines for the same product before touching any stock
+                Map<String, Integer> quantities = new LinkedHashMap<>();
+                for (Map<String, Object> item : items) {
+                    String productName = (String) item.get("productName");
+                    int quantity = (Integer) item.get("quantity");
+                    if (quantity <= 0) {
+                        return "Error: Quantity must be positive for " + productName;
                     }
+                    quantities.merge(productName, quantity, Integer::sum);
+                }
 
-                    synchronized (store) {
-                        Product product = null;
-                        for (Product p : store.getProducts()) {
-                            if (p.getProductName().equals(productName) && p.isActive()) {
-                                product = p;
-                                break;
+                Map<Product, Integer> lines = new LinkedHashMap<>();
+                for (Map.Entry<String, Integer> entry : quantities.entrySet()) {
+                    Product product = store.getActiveProduct(entry.getKey());
+                    if (product == null) {
+                        return "Error: Product not found in store: " + entry.getKey();
+                    }
+                    lines.put(product, entry.getValue());
+                }
+
+                // All or nothing: take each line with a compare-and-set, and put back
+                // what was already taken if any line runs out of stock. Under the store's
+                // lock, so checkouts never fail on stock another checkout is about to put back.
+                double total = 0;
+                ReentrantLock lock = registry.lockFor(storeName);
+                lock.lock();
+                try {
+                    List<Map.Entry<Product, Integer>> taken = new ArrayList<>();
+                    // What each line was charged, priced once so the log matches the live total
+                    List<Double> charged = new ArrayList<>();
+                    for (Map.Entry<Product, Integer> line : lines.entrySet()) {
+                        Product product = line.getKey();
+                        if (!product.purchase(line.getValue())) {
+                            for (Map.Entry<Product, Integer> done : taken) {
+                                done.getKey().restock(done.getValue());
                             }
+                            return "Error: Not enough stock available for " + product.getProductName();
                         }
-
-                        if (product == null) {
-                            out.writeObject("Error: Product not found in store");
-                        } else if (product.getAvailableAmount() < quantity) {
-                            out.writeObject("Error: Not enough stock available");
-                        } else {
-                            product.setAvailableAmount(product.getAvailableAmount() - quantity);
-                            product.setUnitsSold(product.getUnitsSold() + quantity);
-                            store.addToTotalSales(quantity * product.getPrice());
-                            out.writeObject("Purchase successful: " + quantity + "x " + productName);
+                        taken.add(line);
+                        double amount = line.getValue() * product.getPrice();
+                        charged.add(amount);
+                        total += amount;
+                    }
+                    List<Map<String, Object>> changes = new ArrayList<>();
+                    for (int i = 0; i < taken.size(); i++) {
+                        int quantity = taken.get(i).getValue();
+                        changes.add(StoreChanges.stock(storeName, taken.get(i).getKey().getProductName(), -quantity,
+                                quantity, charged.get(i)));
+                    }
+                    try {
+                        record(changes);
+                    } catch (IOException e) {
+                        // No line was logged, so none is taken
+                        for (Map.Entry<Product, Integer> done : taken) {
+                            done.getKey().restock(done.getValue());
                         }
+                        throw e;
                     }
+                } finally {
+                    lock.unlock();
                 }
+                store.addToTotalSales(total);
+                registry.stockChanged();
+                return "Checkout successful: " + lines.size() + " products, total $" + String.format("%.2f", total);
+            }
 
-                case "rate" -> {
-                    @SuppressWarnings("unchecked")
-                    Map<String, Object> rateInfo = (Map<String, Object>) request;
-                    String storeName = (String) rateInfo.get("storeName");
-                    int stars = (Integer) rateInfo.get("stars");
+            case "rate" -> {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> rateInfo = (Map<String, Object>) request;
+                String storeName = (String) rateInfo.get("storeName");
+                int stars = (Integer) rateInfo.get("stars");
 
-                    Store store = getStore(storeName);
-                    if (store == null) {
-                        out.writeObject("Error: Store not found");
-                        break;
-                    }
+                Store store = getStore(storeName);
+                if (store == null) {
+                    return "Error: Store not found";
+                }
 
-                    synchronized (store) {
-                        store.updateStars(stars);
-                        out.writeObject("Rating successful for store: " + storeName);
-                    }
+                ReentrantLock lock = registry.lockFor(storeName);
+                lock.lock();
+                try {
+                    store.updateStars(stars);
+                    record(StoreChanges.rating(storeName, store.getStars(), store.getNoOfVotes()));
+                    registry.reindex(store);
+                } finally {
+                    lock.unlock();
                 }
+                return "Rating successful for store: " + storeName;
+            }
 
-                case "get_all_stores" -> {
-                    List<Store> stores;
-                    synchronized (storeMap) {
-                        stores = new ArrayList<>(storeMap.values());
-                    }
-                    out.writeObject(stores);
+            case "get_all_stores" -> {
+                if (!(request instanceof Map<?, ?> query) || !(query.get("pageSize") instanceof Integer)) {
+                    return "Error: Stores are listed a page at a time, a pageSize is required";
                 }
+                return page(registry.namesAfter((String) query.get("cursor")), (Integer) query.get("pageSize"),
+                        (String) query.get("productView"));
+            }
 
-                default -> {
-                    out.writeObject("ERROR - Unknown command");
+            case "nearby_stores" -> {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> location = (Map<String, Object>) request;
+                if (!(location.get("pageSize") instanceof Integer)) {
+                    return "Error: Stores are listed a page at a time, a pageSize is required";
                 }
+                double latitude = (Double) location.get("latitude");
+                double longitude = (Double) location.get("longitude");
+                double radiusKm = (Double) location.get("radiusKm");
+                List<String> found = registry.geoIndex().findWithin(latitude, longitude, radiusKm);
+                NavigableSet<String> sorted = new TreeSet<>(found);
+                String cursor = (String) location.get("cursor");
+                return page(cursor == null ? sorted : sorted.tailSet(cursor, false), (Integer) location.get("pageSize"),
+                        (String) location.get("productView"));
             }
-            out.flush();
-            System.out.println("Worker on port " + port + " processed request");
 
-        } catch (Exception e) {
-            System.err.println("Worker error: " + e.getMessage());
-            e.printStackTrace();
-        } finally {
-            try { socket.close(); } catch (IOException ignored) {}
+            default -> {
+                return "ERROR - Unknown command";
+            }
         }
     }
 }